@@ -18,6 +18,7 @@ public class CommitLogApplicationComponent extends CheckinHandlerFactory impleme
 
     @Override
     public void disposeComponent() {
+        CommitLogTemplateCache.getInstance().clear();
     }
 
     @NotNull
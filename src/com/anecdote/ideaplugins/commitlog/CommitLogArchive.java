@@ -0,0 +1,733 @@
+package com.anecdote.ideaplugins.commitlog;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Every commit log generated for a project, kept on disk so the Commit Logs window survives a restart.  The logs are
+ * appended to a data file, and an index file alongside it records where each one starts, how long it is and its
+ * title.  Only the index is read when the archive opens - a log's text is read back from the data file when it is
+ * wanted.  Logs are kept deflated on disk, as a large commit's log repeats the same paths and revisions line after
+ * line and shrinks to a small part of its size.  Appends are held in memory and deflated, written out and forced to
+ * disk in batches a little while later, on the archive's own thread.  The logs are also indexed for searching, in the
+ * background as they are appended, and the words each was indexed under are appended to a third file with the next
+ * batch - so the search index is rebuilt from that file when the archive opens, and only the logs missing from it are
+ * read.
+ */
+final class CommitLogArchive {
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final long FLUSH_DELAY_MILLIS = 2000L;
+    // offset, length, timestamp and title length
+    private static final int INDEX_RECORD_HEADER_SIZE = 8 + 4 + 8 + 2;
+    // id and length of the words, which follow separated by newlines
+    private static final int WORDS_RECORD_HEADER_SIZE = 4 + 4;
+    // flushes that may fail in a row before the archive stops writing, rather than hold ever more logs in memory
+    private static final int MAX_FLUSH_FAILURES = 3;
+
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+        public Thread newThread(@NotNull Runnable runnable) {
+
+            Thread thread = new Thread(runnable, "Commit Log Archive");
+            thread.setDaemon(true);
+
+            return thread;
+        }
+    });
+
+    private final File dataFile;
+    private final File indexFile;
+    private final File wordsFile;
+    private final List<ArchivedCommitLog> commitLogs = new ArrayList<>();
+    private final List<ArchivedCommitLog> pendingCommitLogs = new ArrayList<>();
+    private final List<ByteBuffer> pendingWordsRecords = new ArrayList<>();
+    private final CommitLogSearchIndex searchIndex = new CommitLogSearchIndex();
+    // held by a flush throughout, while the archive's own lock is only held to take and return the pending logs
+    private final Object flushLock = new Object();
+    // set from the words file when the archive opens, and only used on the flusher thread after, so the logs are
+    // indexed in order
+    private int indexedCount;
+    private FileChannel dataChannel;
+    private FileChannel indexChannel;
+    private FileChannel wordsChannel;
+    // how much of each file holds complete records, which is where the next batch is written - over whatever a
+    // failed write left behind
+    private long dataSize;
+    private long indexSize;
+    private long wordsSize;
+    // whether appended logs are written to disk - not until the archive opens, nor once writing them has failed
+    // too often, so that logs are only held in memory for as long as a tab shows them
+    private boolean archiving;
+    private boolean persistingWords;
+    private int flushFailures;
+    private boolean flushScheduled;
+
+    CommitLogArchive(@NotNull File directory) {
+        this.dataFile = new File(directory, "commitlogs.dat");
+        this.indexFile = new File(directory, "commitlogs.idx");
+        this.wordsFile = new File(directory, "commitlogs.words");
+    }
+
+    /**
+     * Reads the index, and the words the logs were indexed under into the search index.  Records left incomplete by a
+     * crash are dropped from either, along with any log they point past the end of the data file for.  An archive
+     * that does not open holds no logs, and does not archive any appended.
+     */
+    synchronized void open() throws IOException {
+
+        try {
+            openFiles();
+        } catch (IOException e) {
+            this.commitLogs.clear();
+            closeChannels();
+            throw e;
+        }
+
+        this.archiving = true;
+        this.persistingWords = true;
+        scheduleIndexing();
+    }
+
+    private void openFiles() throws IOException {
+
+        File directory = this.dataFile.getParentFile();
+
+        if ((!directory.isDirectory()) && (!directory.mkdirs())) {
+            throw new IOException("Could not create " + directory);
+        }
+
+        this.dataChannel = FileChannel.open(this.dataFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.indexChannel = FileChannel.open(this.indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.dataSize = this.dataChannel.size();
+
+        long indexSize = this.indexChannel.size();
+        long validIndexSize = 0L;
+
+        if (indexSize > 0L) {
+
+            MappedByteBuffer index = this.indexChannel.map(FileChannel.MapMode.READ_ONLY, 0L, indexSize);
+
+            while (index.remaining() >= INDEX_RECORD_HEADER_SIZE) {
+
+                long offset = index.getLong();
+                int length = index.getInt();
+                long timestamp = index.getLong();
+                int titleLength = index.getShort() & 0xFFFF;
+
+                if ((index.remaining() < titleLength) || (offset < 0L) || (length < 0) || (offset + length > this.dataSize)) {
+                    break;
+                }
+
+                byte[] title = new byte[titleLength];
+                index.get(title);
+                this.commitLogs.add(new ArchivedCommitLog(this.commitLogs.size(), new String(title, CHARSET), timestamp, offset, length, null));
+                validIndexSize = index.position();
+            }
+        }
+
+        if (validIndexSize < indexSize) {
+            this.indexChannel.truncate(validIndexSize);
+        }
+
+        this.indexSize = validIndexSize;
+        this.wordsChannel = FileChannel.open(this.wordsFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        readWords();
+    }
+
+    /**
+     * Adds the words of every log recorded in the words file to the search index, so those logs need not be read.
+     * Records are in id order, though a log that could not be read when it was indexed has none.
+     */
+    private void readWords() throws IOException {
+
+        long wordsSize = this.wordsChannel.size();
+        long validWordsSize = 0L;
+
+        if (wordsSize > 0L) {
+
+            MappedByteBuffer words = this.wordsChannel.map(FileChannel.MapMode.READ_ONLY, 0L, wordsSize);
+
+            while (words.remaining() >= WORDS_RECORD_HEADER_SIZE) {
+
+                int id = words.getInt();
+                int length = words.getInt();
+
+                if ((words.remaining() < length) || (length < 0) || (id < this.indexedCount) || (id >= this.commitLogs.size())) {
+                    break;
+                }
+
+                byte[] text = new byte[length];
+                words.get(text);
+                this.searchIndex.add(id, length > 0 ? Arrays.asList(new String(text, CHARSET).split("\n")) : Collections.<String>emptyList());
+                this.indexedCount = id + 1;
+                validWordsSize = words.position();
+            }
+        }
+
+        if (validWordsSize < wordsSize) {
+            this.wordsChannel.truncate(validWordsSize);
+        }
+
+        this.wordsSize = validWordsSize;
+    }
+
+    /**
+     * @return the archived logs, oldest first
+     */
+    synchronized List<ArchivedCommitLog> getCommitLogs() {
+        return Collections.unmodifiableList(new ArrayList<>(this.commitLogs));
+    }
+
+    /**
+     * @return the log, which is only held in memory, by whoever holds it, if the archive is not archiving
+     */
+    synchronized ArchivedCommitLog append(@NotNull String title, @NotNull String text) {
+
+        ArchivedCommitLog commitLog = new ArchivedCommitLog(this.commitLogs.size(), title, System.currentTimeMillis(), -1L, -1, text);
+
+        if (!this.archiving) {
+            return commitLog;
+        }
+
+        this.commitLogs.add(commitLog);
+        this.pendingCommitLogs.add(commitLog);
+        scheduleIndexing();
+        scheduleFlush();
+
+        return commitLog;
+    }
+
+    private synchronized void scheduleFlush() {
+
+        if (!this.flushScheduled) {
+
+            this.flushScheduled = true;
+            FLUSHER.schedule(new Runnable() {
+
+                public void run() {
+                    flush();
+                }
+            }, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return the logs holding every word of the query, most recent first.  Logs still waiting to be indexed are not
+     *         found.
+     */
+    @NotNull
+    List<ArchivedCommitLog> search(@NotNull String query) {
+
+        int[] ids = this.searchIndex.search(query);
+        List<ArchivedCommitLog> result = new ArrayList<>(ids.length);
+
+        synchronized (this) {
+
+            for (int i = ids.length - 1; i >= 0; i--) {
+
+                // logs given up on are still in the search index
+                if (ids[i] < this.commitLogs.size()) {
+                    result.add(this.commitLogs.get(ids[i]));
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private void scheduleIndexing() {
+
+        FLUSHER.execute(new Runnable() {
+
+            public void run() {
+                indexCommitLogs();
+            }
+        });
+    }
+
+    /**
+     * Adds the logs not yet indexed to the search index, and queues their words to be written with the next flush.
+     * Only reading a log's bytes holds the archive's lock - inflating and tokenizing them does not.
+     */
+    private void indexCommitLogs() {
+
+        while (true) {
+
+            ArchivedCommitLog commitLog;
+            String text;
+
+            try {
+
+                byte[] data = null;
+
+                synchronized (this) {
+
+                    if ((this.indexedCount >= this.commitLogs.size()) || (!this.archiving)) {
+                        return;
+                    }
+
+                    commitLog = this.commitLogs.get(this.indexedCount++);
+                    text = commitLog.text;
+
+                    if (text == null) {
+                        data = readData(commitLog);
+                    }
+                }
+
+                if (text == null) {
+                    text = inflate(data);
+                }
+
+            } catch (IOException e) {
+                CommitLogProjectComponent.log("CommitLogArchive.indexCommitLogs : could not read log : " + e.getMessage());
+                continue;
+            }
+
+            Set<String> words = CommitLogSearchIndex.tokenize(text);
+            byte[] wordsText = join(words).getBytes(CHARSET);
+            ByteBuffer wordsRecord = ByteBuffer.allocate(WORDS_RECORD_HEADER_SIZE + wordsText.length);
+
+            wordsRecord.putInt(commitLog.id).putInt(wordsText.length).put(wordsText);
+            wordsRecord.flip();
+            this.searchIndex.add(commitLog.id, words);
+
+            synchronized (this) {
+
+                if (!this.persistingWords) {
+                    continue;
+                }
+
+                this.pendingWordsRecords.add(wordsRecord);
+            }
+
+            scheduleFlush();
+        }
+    }
+
+    private static String join(Collection<String> words) {
+
+        StringBuilder result = new StringBuilder();
+
+        for (String word : words) {
+
+            if (result.length() > 0) {
+                result.append('\n');
+            }
+
+            result.append(word);
+        }
+
+        return result.toString();
+    }
+
+    @NotNull
+    String read(@NotNull ArchivedCommitLog commitLog) throws IOException {
+
+        byte[] data;
+
+        synchronized (this) {
+
+            if (commitLog.text != null) {
+                return commitLog.text;
+            }
+
+            data = readData(commitLog);
+        }
+
+        return inflate(data);
+    }
+
+    /**
+     * Reads a written log's deflated bytes.  Called holding the archive's lock, so the log is not being written.
+     */
+    private byte[] readData(ArchivedCommitLog commitLog) throws IOException {
+
+        byte[] data = new byte[commitLog.length];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+
+        while (buffer.hasRemaining()) {
+
+            if (this.dataChannel.read(buffer, commitLog.offset + buffer.position()) < 0) {
+                throw new IOException("Commit log archive " + this.dataFile + " is truncated");
+            }
+        }
+
+        return data;
+    }
+
+    private static byte[] deflate(String text) {
+
+        Deflater deflater = new Deflater();
+
+        try {
+
+            deflater.setInput(text.getBytes(CHARSET));
+            deflater.finish();
+
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+
+            while (!deflater.finished()) {
+                result.write(buffer, 0, deflater.deflate(buffer));
+            }
+
+            return result.toByteArray();
+
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private String inflate(byte[] data) throws IOException {
+
+        Inflater inflater = new Inflater();
+
+        try {
+
+            inflater.setInput(data);
+
+            ByteArrayOutputStream result = new ByteArrayOutputStream(data.length * 8);
+            byte[] buffer = new byte[8192];
+
+            while (!inflater.finished()) {
+
+                int inflated = inflater.inflate(buffer);
+
+                if ((inflated == 0) && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Commit log archive " + this.dataFile + " holds a truncated log");
+                }
+
+                result.write(buffer, 0, inflated);
+            }
+
+            return new String(result.toByteArray(), CHARSET);
+
+        } catch (DataFormatException e) {
+            throw new IOException("Commit log archive " + this.dataFile + " holds a corrupt log : " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Deflates the pending logs and writes them to the data file and their records to the index, then forces both to
+     * disk, followed by the words of the logs indexed since the last flush.  The pending logs are taken under the
+     * archive's lock, but written without it, so reading and appending logs never waits on the disk.  Flushes are
+     * serialized by a lock of their own.  Logs that could not be written go back to the pending list, still in memory,
+     * and are tried again - until too many flushes in a row have failed, when the archive stops archiving and leaves
+     * the logs not written to the tabs showing them.  Words that could not be written are given up on at once, and
+     * the logs they are for indexed again when the archive next opens.
+     */
+    void flush() {
+
+        synchronized (this.flushLock) {
+
+            List<ArchivedCommitLog> commitLogs;
+            List<ByteBuffer> wordsRecords;
+            FileChannel dataChannel;
+            FileChannel indexChannel;
+            FileChannel wordsChannel;
+            long dataSize;
+            long indexSize;
+            long wordsSize;
+
+            synchronized (this) {
+
+                this.flushScheduled = false;
+
+                if ((this.pendingCommitLogs.isEmpty() && this.pendingWordsRecords.isEmpty()) || (!this.archiving)) {
+                    return;
+                }
+
+                commitLogs = new ArrayList<>(this.pendingCommitLogs);
+                wordsRecords = new ArrayList<>(this.pendingWordsRecords);
+                this.pendingCommitLogs.clear();
+                this.pendingWordsRecords.clear();
+                dataChannel = this.dataChannel;
+                indexChannel = this.indexChannel;
+                wordsChannel = this.wordsChannel;
+                dataSize = this.dataSize;
+                indexSize = this.indexSize;
+                wordsSize = this.wordsSize;
+            }
+
+            try {
+
+                long[] offsets = new long[commitLogs.size()];
+                int[] lengths = new int[commitLogs.size()];
+                List<ByteBuffer> indexRecords = new ArrayList<>(commitLogs.size());
+
+                for (int i = 0; i < commitLogs.size(); i++) {
+
+                    ArchivedCommitLog commitLog = commitLogs.get(i);
+                    ByteBuffer data = ByteBuffer.wrap(deflate(commitLog.text));
+                    long offset = dataSize;
+                    int length = data.remaining();
+
+                    while (data.hasRemaining()) {
+                        dataChannel.write(data, offset + (length - data.remaining()));
+                    }
+
+                    byte[] title = commitLog.title.getBytes(CHARSET);
+                    int titleLength = Math.min(title.length, 0xFFFF);
+                    ByteBuffer indexRecord = ByteBuffer.allocate(INDEX_RECORD_HEADER_SIZE + titleLength);
+
+                    indexRecord.putLong(offset).putInt(length).putLong(commitLog.timestamp).putShort((short) titleLength).put(title, 0, titleLength);
+                    indexRecord.flip();
+                    indexRecords.add(indexRecord);
+
+                    offsets[i] = offset;
+                    lengths[i] = length;
+                    dataSize += length;
+                }
+
+                // the data is on disk before the index points at it
+                dataChannel.force(false);
+                indexSize = write(indexChannel, indexRecords, indexSize);
+                indexChannel.force(false);
+
+                synchronized (this) {
+
+                    for (int i = 0; i < commitLogs.size(); i++) {
+
+                        ArchivedCommitLog commitLog = commitLogs.get(i);
+
+                        commitLog.offset = offsets[i];
+                        commitLog.length = lengths[i];
+                        commitLog.text = null;
+                    }
+
+                    this.dataSize = dataSize;
+                    this.indexSize = indexSize;
+                    this.flushFailures = 0;
+                }
+
+            } catch (IOException e) {
+
+                CommitLogProjectComponent.log("CommitLogArchive.flush : could not write " + this.dataFile + " : " + e.getMessage());
+
+                synchronized (this) {
+
+                    this.pendingCommitLogs.addAll(0, commitLogs);
+                    this.pendingWordsRecords.addAll(0, wordsRecords);
+
+                    if (++this.flushFailures < MAX_FLUSH_FAILURES) {
+                        scheduleFlush();
+                    } else {
+                        stopArchiving();
+                    }
+                }
+
+                return;
+            }
+
+            // written once the index holds the logs they are for, as a record for a log the index lost in a crash
+            // would be dropped when the archive opens
+            try {
+
+                wordsSize = write(wordsChannel, wordsRecords, wordsSize);
+                wordsChannel.force(false);
+
+                synchronized (this) {
+                    this.wordsSize = wordsSize;
+                }
+
+            } catch (IOException e) {
+
+                // a gap in the words would leave the logs in it unindexed after the archive opens again, so the words
+                // of the logs still to come are not written either
+                CommitLogProjectComponent.log("CommitLogArchive.flush : could not write " + this.wordsFile + " : " + e.getMessage());
+
+                synchronized (this) {
+                    this.persistingWords = false;
+                    this.pendingWordsRecords.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Gives up on writing the logs not yet written.  They are dropped from the archive, which they are the last of,
+     * and only held by the tabs that show them.  Called holding the archive's lock.
+     */
+    private void stopArchiving() {
+
+        CommitLogProjectComponent.log("CommitLogArchive : gave up writing " + this.pendingCommitLogs.size() + " commit logs to " + this.dataFile);
+
+        if (!this.pendingCommitLogs.isEmpty()) {
+            this.commitLogs.subList(this.pendingCommitLogs.get(0).id, this.commitLogs.size()).clear();
+        }
+
+        this.pendingCommitLogs.clear();
+        this.pendingWordsRecords.clear();
+        this.archiving = false;
+    }
+
+    /**
+     * Writes the records at the position given, so a record a failed write left incomplete is written over.
+     *
+     * @return the position after the records
+     */
+    private static long write(FileChannel channel, List<ByteBuffer> records, long position) throws IOException {
+
+        int size = 0;
+
+        for (ByteBuffer record : records) {
+            size += record.remaining();
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+
+        for (ByteBuffer record : records) {
+            buffer.put(record.duplicate());
+        }
+
+        buffer.flip();
+
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+
+        return position + size;
+    }
+
+    void close() {
+
+        synchronized (this.flushLock) {
+
+            flush();
+
+            synchronized (this) {
+                closeChannels();
+                this.archiving = false;
+            }
+        }
+    }
+
+    private void closeChannels() {
+
+        try {
+
+            if (this.dataChannel != null) {
+                this.dataChannel.close();
+            }
+
+            if (this.indexChannel != null) {
+                this.indexChannel.close();
+            }
+
+            if (this.wordsChannel != null) {
+                this.wordsChannel.close();
+            }
+
+        } catch (IOException e) {
+            CommitLogProjectComponent.log("CommitLogArchive.close : " + e.getMessage());
+        }
+
+        this.dataChannel = null;
+        this.indexChannel = null;
+        this.wordsChannel = null;
+    }
+
+    /**
+     * Measures the heap held by a synthetic history of large commit logs, as text and deflated.
+     */
+    public static void main(String[] args) {
+
+        int commits = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int files = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        Random random = new Random(42);
+        long baseline = usedHeap();
+        List<String> texts = new ArrayList<>(commits);
+        int chars = 0;
+
+        for (int c = 0; c < commits; c++) {
+
+            StringBuilder text = new StringBuilder("Commit ").append(c).append(" : synthetic change\n\nModified Files :\n");
+
+            for (int f = 0; f < files; f++) {
+
+                int revision = random.nextInt(200);
+                text.append("    root").append(random.nextInt(3)).append("/src/main/java/com/example/module")
+                    .append(random.nextInt(20)).append("/package").append(random.nextInt(50)).append("/Class")
+                    .append(random.nextInt(100000)).append(".java : 1.").append(revision).append(" -> 1.")
+                    .append(revision + 1).append('\n');
+            }
+
+            texts.add(text.toString());
+            chars += text.length();
+        }
+
+        long textBytes = usedHeap() - baseline;
+        long start = System.nanoTime();
+        List<byte[]> deflated = new ArrayList<>(commits);
+
+        for (String text : texts) {
+            deflated.add(deflate(text));
+        }
+
+        long deflateTime = System.nanoTime() - start;
+
+        texts.clear();
+
+        long deflatedBytes = usedHeap() - baseline;
+
+        System.out.println(deflated.size() + " logs of " + files + " files, " + (chars / 1024) + "K chars : held as text "
+                           + (textBytes / 1024) + "K, deflated " + (deflatedBytes / 1024) + "K ("
+                           + (100 * deflatedBytes / Math.max(1L, textBytes)) + "%), deflating took "
+                           + (deflateTime / 1000000) + "ms");
+    }
+
+    private static long usedHeap() {
+
+        Runtime runtime = Runtime.getRuntime();
+
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    static final class ArchivedCommitLog {
+
+        // the log's position in the archive
+        private final int id;
+        private final String title;
+        private final long timestamp;
+        private long offset;
+        private int length;
+        // only held until the log is written to disk - for good, if the archive is not archiving
+        private String text;
+
+        private ArchivedCommitLog(int id, String title, long timestamp, long offset, int length, String text) {
+            this.id = id;
+            this.title = title;
+            this.timestamp = timestamp;
+            this.offset = offset;
+            this.length = length;
+            this.text = text;
+        }
+
+        String getTitle() {
+            return this.title;
+        }
+    }
+}
@@ -1,721 +1,716 @@
 package com.anecdote.ideaplugins.commitlog;
 
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.roots.ProjectFileIndex;
-import com.intellij.openapi.roots.ProjectRootManager;
 import com.intellij.openapi.vcs.AbstractVcs;
 import com.intellij.openapi.vcs.FilePath;
 import com.intellij.openapi.vcs.changes.Change;
 import com.intellij.openapi.vcs.changes.ChangeListManager;
 import com.intellij.openapi.vcs.changes.ContentRevision;
+import com.intellij.openapi.util.Computable;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.vcsUtil.VcsUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
+import java.io.IOException;
 import java.text.DateFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 
 class CommitLogBuilder {
 
-    private static final String TIME_PLACEHOLDER = "TIME";
-    private static final String DATE_PLACEHOLDER = "DATE";
-    private static final String DATE_TIME_PLACEHOLDER = "DATE_TIME";
-    private static final String FILE_COUNT_PLACEHOLDER = "FILE_COUNT";
-    private static final String ROOT_COUNT_PLACEHOLDER = "ROOT_COUNT";
-    private static final String ROOT_LIST_PLACEHOLDER = "ROOT_LIST";
-    private static final String COMMIT_MESSAGE_PLACEHOLDER = "COMMIT_MESSAGE";
-    private static final String ROOTS_SECTION_START_PLACEHOLDER = "ROOTS_SECTION";
-    private static final String ROOTS_SECTION_END_PLACEHOLDER = "/ROOTS_SECTION";
-    private static final String ROOT_ENTRY_START_PLACEHOLDER = "ROOT_ENTRY";
-    private static final String ROOT_ENTRY_END_PLACEHOLDER = "/ROOT_ENTRY";
-    private static final String MODIFIED_FILES_SECTION_START_PLACEHOLDER = "MODIFIED_FILES";
-    private static final String ADDED_FILES_SECTION_START_PLACEHOLDER = "ADDED_FILES";
-    private static final String DELETED_FILES_SECTION_START_PLACEHOLDER = "DELETED_FILES";
-    private static final String ALL_FILES_BY_TYPE_SECTION_START_PLACEHOLDER = "ALL_FILES_BY_TYPE";
-    private static final String ALL_FILES_SECTION_START_PLACEHOLDER = "ALL_FILES";
-    private static final String MODIFIED_FILES_SECTION_END_PLACEHOLDER = "/MODIFIED_FILES";
-    private static final String ADDED_FILES_SECTION_END_PLACEHOLDER = "/ADDED_FILES";
-    private static final String DELETED_FILES_SECTION_END_PLACEHOLDER = "/DELETED_FILES";
-    private static final String ALL_FILES_BY_TYPE_SECTION_END_PLACEHOLDER = "ALL_FILES_BY_TYPE";
-    private static final String ALL_FILES_SECTION_END_PLACEHOLDER = "/ALL_FILES";
-    private static final String FILE_ENTRY_START_PLACEHOLDER = "FILE_ENTRY";
-    private static final String FILE_ENTRY_END_PLACEHOLDER = "/FILE_ENTRY";
-    private static final String FILE_NAME_PLACEHOLDER = "FILE_NAME";
-    private static final String FILE_PATH_PLACEHOLDER = "FILE_PATH";
-    private static final String FILE_ACTION_PLACEHOLDER = "FILE_ACTION";
-    private static final String ROOT_NAME_PLACEHOLDER = "ROOT_NAME";
-    private static final String PACKAGE_NAME_PLACEHOLDER = "PACKAGE_NAME";
-    private static final String PACKAGE_PATH_PLACEHOLDER = "PACKAGE_PATH";
-    private static final String PATH_FROM_ROOT_PLACEHOLDER = "PATH_FROM_ROOT";
-    private static final String OLD_REVISION_NUMBER_PLACEHOLDER = "OLD_REVISION_NUMBER";
-    private static final String NEW_REVISION_NUMBER_PLACEHOLDER = "NEW_REVISION_NUMBER";
-    private static final String CHANGE_SYMBOL_PLACEHOLDER = "CHANGE_SYMBOL";
-    private int fileCount;
-    private final Map<String, Map<Change.Type, Collection<CommitLogEntry>>> commitLogEntriesByRootAndType = new TreeMap();
-
-    private Map<Change.Type, Collection<CommitLogEntry>> commitLogEntriesByType = new EnumMap(Change.Type.class);
-
-    private Map<String, Collection<CommitLogEntry>> commitLogEntriesByRootAndPath = new HashMap();
-
-    private Collection<CommitLogEntry> commitLogEntries = new TreeSet();
+    private static final int ENTRY_BATCH_SIZE = 128;
+    private static final ForkJoinPool ENTRY_POOL = new ForkJoinPool(Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private final CommitLogEntryIndex commitLogEntries = new CommitLogEntryIndex();
     private String commitMessage;
     private final String commitLogTemplate;
+    // set when the template is compiled by the caller rather than through the shared cache
+    @Nullable
+    private final CompiledCommitLogTemplate compiledTemplate;
     private String changeListName;
+    private Future<?> oldVersionCapture;
 
     CommitLogBuilder(String commitLogTemplate, String commitMessage) {
         this.commitLogTemplate = commitLogTemplate;
+        this.compiledTemplate = null;
         this.commitMessage = commitMessage;
     }
 
-    public void addCommitLogEntry(CommitLogEntry commitLogEntry) {
-
-        String rootName = commitLogEntry.getVcsRootName();
-        getCommitLogEntries(rootName, commitLogEntry.getChangeType()).add(commitLogEntry);
-        getCommitLogEntries(null, commitLogEntry.getChangeType()).add(commitLogEntry);
-        this.commitLogEntries.add(commitLogEntry);
-        getCommitLogEntriesByRoot(rootName).add(commitLogEntry);
-        this.fileCount += 1;
+    /**
+     * A builder for a template that is not to go in the template cache, such as one still being edited.
+     */
+    CommitLogBuilder(@NotNull CompiledCommitLogTemplate compiledTemplate, String commitMessage) {
+        this.commitLogTemplate = compiledTemplate.getTemplateText();
+        this.compiledTemplate = compiledTemplate;
+        this.commitMessage = commitMessage;
     }
 
-    public void removeUncommittedEntries() {
-        removeUncommittedEntriesByRoot();
-        removeUncommittedEntriesByType(this.commitLogEntriesByType);
+    /**
+     * Lets a builder whose entries are already collected render again for another commit message.
+     */
+    void setCommitMessage(String commitMessage) {
+        this.commitMessage = commitMessage;
     }
 
-    private void removeUncommittedEntriesByRoot() {
-
-        Iterator<Map.Entry<String, Map<Change.Type, Collection<CommitLogEntry>>>> entriesByRootIterator = this.commitLogEntriesByRootAndType.entrySet().iterator();
-
-        while (entriesByRootIterator.hasNext()) {
+    public void addCommitLogEntry(CommitLogEntry commitLogEntry) {
+        this.commitLogEntries.add(commitLogEntry);
+    }
 
-            Map.Entry<String, Map<Change.Type, Collection<CommitLogEntry>>> rootEntry = (Map.Entry) entriesByRootIterator.next();
-            Map<Change.Type, Collection<CommitLogEntry>> entriesForRootByType = (Map) rootEntry.getValue();
+    /**
+     * Waits for the old versions read in the background since the builder was created.
+     */
+    void awaitOldVersions() {
 
-            this.fileCount -= removeUncommittedEntriesByType(entriesForRootByType);
+        if (this.oldVersionCapture == null) {
+            return;
+        }
 
-            if (entriesForRootByType.isEmpty()) {
-                entriesByRootIterator.remove();
-            }
+        try {
+            this.oldVersionCapture.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
         }
+
+        this.oldVersionCapture = null;
     }
 
-    private static int removeUncommittedEntriesByType(Map<Change.Type, Collection<CommitLogEntry>> entriesForRootByType) {
+    public void removeUncommittedEntries() {
 
-        int result = 0;
-        Iterator<Map.Entry<Change.Type, Collection<CommitLogEntry>>> entriesByTypeIterator = entriesForRootByType.entrySet().iterator();
+        awaitOldVersions();
 
-        while (entriesByTypeIterator.hasNext()) {
+        this.commitLogEntries.removeIf(new Predicate<CommitLogEntry>() {
 
-            Map.Entry<Change.Type, Collection<CommitLogEntry>> entry = (Map.Entry) entriesByTypeIterator.next();
-            Collection<CommitLogEntry> commitLogEntries = (Collection) entry.getValue();
-            Iterator<CommitLogEntry> commitLogEntryIterator = commitLogEntries.iterator();
+            public boolean test(CommitLogEntry commitLogEntry) {
 
-            while (commitLogEntryIterator.hasNext()) {
+                ProgressManager.checkCanceled();
 
-                CommitLogEntry commitLogEntry = commitLogEntryIterator.next();
+                // a file whose revision could not be looked up in time is kept rather than guessed uncommitted
+                if (commitLogEntry.isNewVersionUnknown()) {
+                    return false;
+                }
 
                 if (commitLogEntry.getOldVersion() == null ? commitLogEntry.getNewVersion() == null : commitLogEntry.getOldVersion().equals(commitLogEntry.getNewVersion())) {
 
                     CommitLogProjectComponent.log("Removing Commit log entry for " + commitLogEntry.getFilePath() + " : file not committed");
-
-                    commitLogEntryIterator.remove();
-                    result++;
+                    return true;
                 }
-            }
 
-            if (commitLogEntries.isEmpty()) {
-                entriesByTypeIterator.remove();
+                return false;
             }
-        }
+        });
+    }
 
-        return result;
+    private Collection<CommitLogEntry> getCommitLogEntries(@Nullable String root, @Nullable Change.Type type) {
+        return this.commitLogEntries.getEntries(root, type);
     }
 
-    private Collection<CommitLogEntry> getCommitLogEntries(String root, @Nullable Change.Type type) {
+    Collection<CommitLogEntry> getCommitLogEntries() {
 
-        if (type != null) {
+        awaitOldVersions();
 
-            Map<Change.Type, Collection<CommitLogEntry>> byRoot = getCommitLogEntriesByTypeByRoot(root);
-            Collection<CommitLogEntry> result = (Collection) byRoot.get(type);
+        return this.commitLogEntries.getEntries(null, null);
+    }
 
-            if (result == null) {
-                result = new HashSet();
-                byRoot.put(type, result);
-            }
+    protected String buildCommitLog(Date date) throws CommitLogTemplateParser.TextTemplateParserException {
 
-            return result;
+        StringBuilder result = new StringBuilder(500);
+
+        try {
+            buildCommitLog(date, result);
+        } catch (IOException e) {
+            // a StringBuilder never throws
+            throw new IllegalStateException(e);
         }
 
-        return root != null ? (Collection) this.commitLogEntriesByRootAndPath.get(root) : this.commitLogEntries;
+        return result.toString();
     }
 
-    public Map<Change.Type, Collection<CommitLogEntry>> getCommitLogEntriesByTypeByRoot(String root) {
+    /**
+     * Renders the commit log straight into <code>out</code>; no intermediate text is built for any section.
+     */
+    protected void buildCommitLog(Date date, Appendable out) throws CommitLogTemplateParser.TextTemplateParserException, IOException {
 
-        Map<Change.Type, Collection<CommitLogEntry>> byRoot = root != null ? (Map) this.commitLogEntriesByRootAndType.get(root) : this.commitLogEntriesByType;
+        CommitLogProjectComponent.log("CommitLogBuilder::buildCommitLog() Entered");
+        awaitOldVersions();
 
-        if (byRoot == null) {
-            byRoot = new EnumMap(Change.Type.class);
-            this.commitLogEntriesByRootAndType.put(root, byRoot);
+        CompiledCommitLogTemplate template = this.compiledTemplate != null
+                                             ? this.compiledTemplate
+                                             : CommitLogTemplateCache.getInstance().getCompiledTemplate(this.commitLogTemplate);
+        CommitLogTemplateNodeTable nodes = template.getNodes();
+
+        if (nodes.size() == 0) {
+            CommitLogProjectComponent.log("ERROR : Parsed template is empty!");
         }
 
-        return byRoot;
-    }
+        for (int i = 0; i < nodes.size(); i++) {
 
-    private Collection<CommitLogEntry> getCommitLogEntriesByRoot(String root) {
+            CommitLogPlaceholder placeholder = template.getPlaceholder(i);
 
-        Collection<CommitLogEntry> byRoot = root != null ? (Collection) this.commitLogEntriesByRootAndPath.get(root) : this.commitLogEntries;
+            if (placeholder == null) {
 
-        if ((root != null) && (byRoot == null)) {
-            byRoot = new TreeSet();
-            this.commitLogEntriesByRootAndPath.put(root, byRoot);
-        }
+                nodes.appendText(i, out);
 
-        return byRoot;
-    }
+            } else if (placeholder == CommitLogPlaceholder.ROOTS_SECTION) {
 
-    protected String buildCommitLog(Date date) throws CommitLogTemplateParser.TextTemplateParserException {
+                CommitLogSection logSection = appendCommitLogRootsSection(out, template, i + 1, date);
+                i += logSection.getUsedNodes();
 
-        CommitLogProjectComponent.log("CommitLogBuilder::buildCommitLog() Entered");
+            } else if (placeholder.isFilesSection()) {
 
-        CommitLogTemplateParser parser = new CommitLogTemplateParser();
-        List<CommitLogTemplateParser.TextTemplateNode> textTemplateNodes = parser.parseTextTemplate(this.commitLogTemplate);
+                CommitLogSection logSection = appendCommitLogFilesSection(out, template, i + 1, null, placeholder);
+                i += logSection.getUsedNodes();
 
-        if (textTemplateNodes.isEmpty()) {
-            CommitLogProjectComponent.log("ERROR : Parsed template is empty!");
+            } else {
+                out.append(processCommonPlaceholders(placeholder, date));
+            }
         }
+    }
 
-        StringBuilder result = new StringBuilder(500);
+    /**
+     * @return the number of nodes from <code>start</code> up to and including the placeholder closing the block
+     */
+    private static int getBlockNodeCount(CompiledCommitLogTemplate template, int start) {
+        return template.getNodes().getMatchingNode(start - 1) - start + 1;
+    }
 
-        for (int i = 0; i < textTemplateNodes.size(); i++) {
+    private String processCommonPlaceholders(CommitLogPlaceholder placeholder, Date date) {
+
+        switch (placeholder) {
+            case TIME:
+                return DateFormat.getTimeInstance().format(date);
+            case DATE:
+                return DateFormat.getDateInstance().format(date);
+            case DATE_TIME:
+                return DateFormat.getDateTimeInstance().format(date);
+            case FILE_COUNT:
+                return String.valueOf(this.commitLogEntries.size());
+            case ROOT_COUNT:
+                return String.valueOf(this.commitLogEntries.getRootNames().size());
+            case ROOT_LIST:
+                return toString(this.commitLogEntries.getRootNames());
+            case COMMIT_MESSAGE:
+                return this.commitMessage;
+            default:
+                throw new IllegalArgumentException("Not a common placeholder : " + placeholder);
+        }
+    }
+
+    private CommitLogSection appendCommitLogFilesSection(Appendable out, CompiledCommitLogTemplate template, int start,
+                                                         @Nullable String rootName, CommitLogPlaceholder sectionPlaceholder) throws IOException {
+
+        switch (sectionPlaceholder) {
+            case ALL_FILES_BY_TYPE:
+                appendCommitLogFilesSection(out, template, start, rootName, Change.Type.DELETED);
+                appendCommitLogFilesSection(out, template, start, rootName, Change.Type.MODIFICATION);
+                return appendCommitLogFilesSection(out, template, start, rootName, Change.Type.NEW);
+            case ALL_FILES:
+                return appendCommitLogFilesSection(out, template, start, rootName, (Change.Type) null);
+            case ADDED_FILES:
+                return appendCommitLogFilesSection(out, template, start, rootName, Change.Type.NEW);
+            case DELETED_FILES:
+                return appendCommitLogFilesSection(out, template, start, rootName, Change.Type.DELETED);
+            case MODIFIED_FILES:
+                return appendCommitLogFilesSection(out, template, start, rootName, Change.Type.MODIFICATION);
+            default:
+                throw new IllegalArgumentException("Not a files section placeholder : " + sectionPlaceholder);
+        }
+    }
 
-            CommitLogTemplateParser.TextTemplateNode textTemplateNode = textTemplateNodes.get(i);
-            String text = textTemplateNode.getText();
+    private CommitLogSection appendCommitLogRootsSection(Appendable out, CompiledCommitLogTemplate template, int start, Date date) throws IOException {
 
-            if (textTemplateNode.getType() == CommitLogTemplateParser.TextTemplateNodeType.BLOCK_PLACEHOLDER_NODE) {
+        int usedNodes = getBlockNodeCount(template, start);
 
-                if (text.equals("ROOTS_SECTION")) {
+        if (this.commitLogEntries.size() == 0) {
+            return new CommitLogSection(usedNodes);
+        }
 
-                    i++;
+        CommitLogTemplateNodeTable nodes = template.getNodes();
+        int end = start + usedNodes - 1;
 
-                    List<CommitLogTemplateParser.TextTemplateNode> followingNodes = getFollowingNodes(textTemplateNodes, i);
-                    CommitLogSection logSection = buildCommitLogRootsSection(followingNodes, new Date());
-                    i += logSection.getUsedNodes() - 1;
-                    text = logSection.getText();
+        for (int i = start; i < end; i++) {
 
-                } else if (isFileSectionStartPlaceholder(text)) {
+            CommitLogPlaceholder placeholder = template.getPlaceholder(i);
 
-                    i++;
-                    List<CommitLogTemplateParser.TextTemplateNode> followingNodes = getFollowingNodes(textTemplateNodes, i);
-                    CommitLogSection logSection = buildCommitLogFilesSection(followingNodes, null, text);
-                    i += logSection.getUsedNodes() - 1;
-                    text = logSection.getText();
+            if (placeholder == null) {
 
-                }
+                nodes.appendText(i, out);
 
-            } else if (textTemplateNode.getType() == CommitLogTemplateParser.TextTemplateNodeType.VALUE_PLACEHOLDER_NODE) {
-                text = processCommonPlaceholders(text, date);
-            }
+            } else if (placeholder == CommitLogPlaceholder.ROOT_ENTRY) {
+
+                CommitLogSection logSection = appendCommitLogRootEntries(out, template, i + 1, date);
+                i += logSection.getUsedNodes();
 
-            result.append(text);
+            } else {
+                out.append(processCommonPlaceholders(placeholder, date));
+            }
         }
 
-        return result.toString();
+        return new CommitLogSection(usedNodes);
     }
 
-    private static boolean isFilesSectionEndPlaceholder(String text) {
+    private CommitLogSection appendCommitLogRootEntries(Appendable out, CompiledCommitLogTemplate template, int start, Date date) throws IOException {
 
-        return ("/DELETED_FILES".equals(text))
-                || ("/MODIFIED_FILES".equals(text))
-                || ("/ADDED_FILES".equals(text))
-                || ("ALL_FILES_BY_TYPE".equals(text))
-                || ("/ALL_FILES".equals(text)
-        );
-    }
+        int usedNodes = getBlockNodeCount(template, start);
 
-    private static boolean isFileSectionStartPlaceholder(String text) {
+        for (String rootName : this.commitLogEntries.getRootNames()) {
+            appendCommitLogRootEntry(out, template, start, start + usedNodes - 1, date, rootName);
+        }
 
-        return ("DELETED_FILES".equals(text))
-                || ("MODIFIED_FILES".equals(text))
-                || ("ADDED_FILES".equals(text))
-                || ("ALL_FILES_BY_TYPE".equals(text))
-                || ("ALL_FILES".equals(text)
-        );
+        return new CommitLogSection(usedNodes);
     }
 
-    private String processCommonPlaceholders(String nodeText, Date date) {
+    private void appendCommitLogRootEntry(Appendable out,
+                                          CompiledCommitLogTemplate template,
+                                          int start,
+                                          int end,
+                                          Date date,
+                                          String rootName) throws IOException {
 
-        switch (nodeText) {
-            case "TIME":
-                nodeText = DateFormat.getTimeInstance().format(date);
-                break;
-            case "DATE":
-                nodeText = DateFormat.getDateInstance().format(date);
-                break;
-            case "DATE_TIME":
-                nodeText = DateFormat.getDateTimeInstance().format(date);
-                break;
-            case "FILE_COUNT":
-                nodeText = String.valueOf(this.fileCount);
-                break;
-            case "ROOT_COUNT":
-                nodeText = String.valueOf(this.commitLogEntriesByRootAndType.size());
-                break;
-            case "ROOT_LIST":
-                nodeText = toString(this.commitLogEntriesByRootAndType.keySet());
-                break;
-            case "COMMIT_MESSAGE":
-                nodeText = this.commitMessage;
-                break;
-            default:
-                nodeText = "Illegal Placeholder : $" + nodeText + "$";
-                break;
-        }
+        CommitLogTemplateNodeTable nodes = template.getNodes();
 
-        return nodeText;
-    }
+        for (int i = start; i < end; i++) {
 
-    private CommitLogSection buildCommitLogFilesSection(List<CommitLogTemplateParser.TextTemplateNode> nodes,
-                                                        @Nullable String rootName, String sectionPlaceholder) {
+            CommitLogPlaceholder placeholder = template.getPlaceholder(i);
 
-        CommitLogSection logSection;
+            if (placeholder == null) {
 
-        if (sectionPlaceholder.equals("ALL_FILES_BY_TYPE")) {
+                nodes.appendText(i, out);
 
-            logSection = buildCommitLogFilesSection(nodes, rootName, true);
+            } else if (placeholder.isFilesSection()) {
 
-        } else {
+                CommitLogSection logSection = appendCommitLogFilesSection(out, template, i + 1, rootName, placeholder);
+                i += logSection.getUsedNodes();
 
-            if (sectionPlaceholder.equals("ALL_FILES")) {
+            } else if (placeholder == CommitLogPlaceholder.ROOT_NAME) {
 
-                logSection = buildCommitLogFilesSection(nodes, rootName, false);
+                out.append(rootName);
 
-            } else {
+            } else if (placeholder == CommitLogPlaceholder.FILE_COUNT) {
 
-                Change.Type type = null;
-
-                switch (sectionPlaceholder) {
-                    case "ADDED_FILES":
-                        type = Change.Type.NEW;
-                        break;
-                    case "DELETED_FILES":
-                        type = Change.Type.DELETED;
-                        break;
-                    case "MODIFIED_FILES":
-                        type = Change.Type.MODIFICATION;
-                        break;
-                }
+                out.append(String.valueOf(getCommitLogEntries(rootName, null).size()));
 
-                logSection = type != null ? buildCommitLogFilesSection(nodes, rootName, type) : new CommitLogSection("Unknown placeholder in template : $" + sectionPlaceholder + '$', 1);
+            } else {
+                out.append(processCommonPlaceholders(placeholder, date));
             }
         }
-
-        return logSection;
     }
 
-    private CommitLogSection buildCommitLogRootsSection(List<CommitLogTemplateParser.TextTemplateNode> nodes, Date date) {
-
-        int usedNodes = 0;
-        StringBuilder result = new StringBuilder(500);
+    @NotNull
+    private CommitLogSection appendCommitLogFilesSection(Appendable out, @NotNull CompiledCommitLogTemplate template, int start,
+                                                         @Nullable String rootName, @Nullable Change.Type type) throws IOException {
 
-        for (int i = 0; i < nodes.size(); i++) {
+        int usedNodes = getBlockNodeCount(template, start);
+        Collection<CommitLogEntry> entries = getCommitLogEntries(rootName, type);
 
-            CommitLogTemplateParser.TextTemplateNode textTemplateNode = nodes.get(i);
-            String text = textTemplateNode.getText();
+        // an empty section is skipped without visiting any of its nodes
+        if (entries.isEmpty()) {
+            return new CommitLogSection(usedNodes);
+        }
 
-            if (textTemplateNode.getType() == CommitLogTemplateParser.TextTemplateNodeType.BLOCK_PLACEHOLDER_NODE) {
+        CommitLogTemplateNodeTable nodes = template.getNodes();
+        int end = start + usedNodes - 1;
 
-                String nodeText = text;
+        for (int i = start; i < end; i++) {
 
-                if (nodeText.equals("ROOT_ENTRY")) {
+            CommitLogPlaceholder placeholder = template.getPlaceholder(i);
 
-                    i++;
-                    CommitLogSection logSection = buildCommitLogRootEntries(getFollowingNodes(nodes, i), date);
-                    text = logSection.getText();
-                    i += logSection.getUsedNodes() - 1;
+            if (placeholder == null) {
 
-                } else if (text.equals("/ROOTS_SECTION")) {
+                nodes.appendText(i, out);
 
-                    usedNodes = i + 1;
-                    break;
-                }
+            } else if (placeholder == CommitLogPlaceholder.FILE_ENTRY) {
 
-            } else if (textTemplateNode.getType() == CommitLogTemplateParser.TextTemplateNodeType.VALUE_PLACEHOLDER_NODE) {
-                text = processCommonPlaceholders(text, date);
-            }
+                CommitLogSection logSection = appendCommitLogFileEntries(out, template, i + 1, entries);
+                i += logSection.getUsedNodes();
 
-            if (!this.commitLogEntriesByRootAndType.isEmpty()) {
-                result.append(text);
+            } else {
+                out.append(String.valueOf(entries.size()));
             }
         }
 
-        return new CommitLogSection(result.toString(), usedNodes);
+        return new CommitLogSection(usedNodes);
     }
 
-    private CommitLogSection buildCommitLogRootEntries(List<CommitLogTemplateParser.TextTemplateNode> nodes, Date date) {
-
-        StringBuilder result = new StringBuilder(500);
-        int usedNodes = 0;
-
-        if (this.commitLogEntriesByRootAndType.isEmpty()) {
-            usedNodes = appendCommitLogRootEntries(result, nodes, date, null, null);
-            return new CommitLogSection("", usedNodes);
-        }
+    @NotNull
+    private static CommitLogSection appendCommitLogFileEntries(Appendable out, @NotNull CompiledCommitLogTemplate template, int start,
+                                                               Collection<CommitLogEntry> entries) throws IOException {
 
-        for (Map.Entry<String, Map<Change.Type, Collection<CommitLogEntry>>> entry : this.commitLogEntriesByRootAndType.entrySet()) {
+        int usedNodes = getBlockNodeCount(template, start);
 
-            String rootName = entry.getKey();
-            Map<Change.Type, Collection<CommitLogEntry>> logEntriesByType = (Map) entry.getValue();
-            usedNodes = appendCommitLogRootEntries(result, nodes, date, rootName, logEntriesByType);
+        for (CommitLogEntry entry : entries) {
+            ProgressManager.checkCanceled();
+            appendCommitLogFileEntry(out, template, start, start + usedNodes - 1, entry);
         }
 
-        return new CommitLogSection(result.toString(), usedNodes);
+        return new CommitLogSection(usedNodes);
     }
 
-    private int appendCommitLogRootEntries(StringBuilder buffer,
-                                           List<CommitLogTemplateParser.TextTemplateNode> nodes,
-                                           Date date,
-                                           @Nullable String rootName,
-                                           @Nullable Map<Change.Type, Collection<CommitLogEntry>> logEntriesByType) {
+    private static void appendCommitLogFileEntry(Appendable out, CompiledCommitLogTemplate template, int start, int end,
+                                                 @NotNull CommitLogEntry entry) throws IOException {
 
-        int usedNodes = 0;
+        CommitLogTemplateNodeTable nodes = template.getNodes();
+        Change.Type type = entry.getChangeType();
+        FilePath filePath = entry.getFilePath();
 
-        for (int i = 0; i < nodes.size(); i++) {
-
-            CommitLogTemplateParser.TextTemplateNode textTemplateNode = nodes.get(i);
-            String text = textTemplateNode.getText();
+        for (int i = start; i < end; i++) {
 
-            if (textTemplateNode.getType() == CommitLogTemplateParser.TextTemplateNodeType.BLOCK_PLACEHOLDER_NODE) {
+            CommitLogPlaceholder placeholder = template.getPlaceholder(i);
 
-                String nodeText = text;
+            if (placeholder == null) {
+                nodes.appendText(i, out);
+                continue;
+            }
 
-                if (isFileSectionStartPlaceholder(nodeText)) {
+            String text;
 
-                    i++;
-                    List<CommitLogTemplateParser.TextTemplateNode> followingNodes = getFollowingNodes(nodes, i);
-                    CommitLogSection logSection = buildCommitLogFilesSection(followingNodes, rootName, nodeText);
-                    i += logSection.getUsedNodes() - 1;
-                    text = logSection.getText();
+            switch (placeholder) {
+                case FILE_NAME:
+                    text = filePath != null ? filePath.getName() : "<no file>";
+                    break;
+                case FILE_PATH:
+                    text = filePath != null ? filePath.getPath() : "<no file>";
+                    break;
+                case FILE_ACTION:
+                    text = placeholder.name();
+                    if (type == Change.Type.DELETED) {
+                        text = "Removed";
+                    } else if (type == Change.Type.MODIFICATION) {
+                        text = "Modified";
+                    } else if (type == Change.Type.NEW) {
+                        text = "Added";
+                    }
+                    break;
+                case ROOT_NAME:
+                    text = entry.getVcsRootName();
+                    break;
+                case PACKAGE_NAME:
+                    text = entry.getPackageName();
+                    break;
+                case PACKAGE_PATH:
+                case PATH_FROM_ROOT:
+                    text = entry.getPathFromRoot();
+                    break;
+                case OLD_REVISION_NUMBER:
+                    if ((entry.getOldVersion() == null) || (type == Change.Type.NEW)) {
+                        text = "Added";
+                    } else {
+                        text = entry.getOldVersion();
+                    }
+                    break;
+                case NEW_REVISION_NUMBER:
+                    if (entry.isNewVersionUnknown()) {
+                        text = "Unknown";
+                    } else if ((entry.getNewVersion() == null) || (type == Change.Type.DELETED)) {
+                        text = "Removed";
+                    } else {
+                        text = entry.getNewVersion();
+                    }
+                    break;
+                case CHANGE_SYMBOL:
+                    if ((entry.getOldVersion() == null) || (type == Change.Type.NEW)) {
+                        text = "+";
+                    } else if (type == Change.Type.DELETED) {
+                        text = "-";
+                    } else {
+                        text = "*";
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Not a file entry placeholder : " + placeholder);
+            }
 
-                } else {
+            out.append(text);
+        }
+    }
 
-                    if (text.equals("/ROOT_ENTRY")) {
-                        usedNodes = i + 1;
-                        break;
-                    }
+    private static String toString(@NotNull Collection collection) {
 
-                    text = "Illegal section placeholder " + text + " : expecting " + "[" + "/ROOT_ENTRY" + "]";
-                }
+        StringBuilder stringBuilder = new StringBuilder(100);
 
-            } else if (textTemplateNode.getType() == CommitLogTemplateParser.TextTemplateNodeType.VALUE_PLACEHOLDER_NODE) {
+        for (Iterator iterator = collection.iterator(); iterator.hasNext(); ) {
 
-                String nodeText = text;
+            stringBuilder.append(iterator.next());
 
-                switch (nodeText) {
-                    case "ROOT_NAME":
-                        text = rootName;
-                        break;
-                    case "FILE_COUNT":
-                        int fileCount = 0;
-                        if (logEntriesByType != null) {
-                            for (Map.Entry<Change.Type, Collection<CommitLogEntry>> entries : logEntriesByType.entrySet()) {
-                                fileCount += ((Collection) entries.getValue()).size();
-                            }
-                        }
-                        text = String.valueOf(fileCount);
-                        break;
-                    default:
-                        text = processCommonPlaceholders(nodeText, date);
-                        break;
-                }
+            if (iterator.hasNext()) {
+                stringBuilder.append(", ");
             }
-
-            buffer.append(text);
         }
 
-        return usedNodes;
+        return stringBuilder.toString();
     }
 
-    @NotNull
-    private CommitLogSection buildCommitLogFilesSection(@NotNull List<CommitLogTemplateParser.TextTemplateNode> nodes,
-                                                        @Nullable String rootName, boolean byType) {
-
-        if (byType) {
-            final CommitLogSection deleted = buildCommitLogFilesSection(nodes, rootName, Change.Type.DELETED);
-            final CommitLogSection modified = buildCommitLogFilesSection(nodes, rootName, Change.Type.MODIFICATION);
-            final CommitLogSection created = buildCommitLogFilesSection(nodes, rootName, Change.Type.NEW);
-            final int usedNodes = deleted.getUsedNodes();
-            // all used nodes should be same
-            assert (usedNodes == modified.getUsedNodes() && usedNodes == created.getUsedNodes());
-            return new CommitLogSection(deleted.getText() + modified.getText() + created.getText(), usedNodes);
-        } else {
-            return buildCommitLogFilesSection(nodes, rootName, (Change.Type)null);
-        }
+    public String getChangeListName() {
+        return this.changeListName;
+    }
 
+    private void setChangeListName(String changeListName) {
+        this.changeListName = changeListName;
     }
 
-    @NotNull
-    private CommitLogSection buildCommitLogFilesSection(@NotNull List<CommitLogTemplateParser.TextTemplateNode> nodes,
-                                                        @Nullable String rootName, @Nullable Change.Type type) {
+    /**
+     * @param trackCommittedFiles whether the entries will be checked against their committed revisions, and so need
+     *                            their old revisions whether the template shows them or not
+     */
+    public static CommitLogBuilder createCommitLogBuilder(String template,
+                                                          String commitMessage,
+                                                          final Project project,
+                                                          Collection<File> files,
+                                                          boolean trackCommittedFiles) {
+        return createCommitLogBuilder(template, commitMessage, project, files, trackCommittedFiles, null);
+    }
 
-        int usedNodes = 0;
-        Collection<CommitLogEntry> entries = getCommitLogEntries(rootName, type);
-        boolean hasEntries = (entries != null) && (!entries.isEmpty());
-        StringBuilder result = hasEntries ? new StringBuilder(500) : new StringBuilder(0);
+    /**
+     * @param indicator shows how many files have been looked at, and stops the batches still to run, and the reading
+     *                  of old versions, when cancelled
+     */
+    public static CommitLogBuilder createCommitLogBuilder(String template,
+                                                          String commitMessage,
+                                                          final Project project,
+                                                          Collection<File> files,
+                                                          boolean trackCommittedFiles,
+                                                          @Nullable final ProgressIndicator indicator) {
 
-        for (int i = 0; i < nodes.size(); i++) {
+        CommitLogBuilder commitLogBuilder = new CommitLogBuilder(template, commitMessage);
+        ChangeListManager changeListManager = ChangeListManager.getInstance(project);
+        final Map<FilePath, Change> changes = getChangeSnapshot(changeListManager);
+        Set<CommitLogPlaceholder> usedPlaceholders = getUsedPlaceholders(template);
+        final CommitLogDirectoryCache directoryCache = new CommitLogDirectoryCache(project,
+                usedPlaceholders.contains(CommitLogPlaceholder.PACKAGE_NAME),
+                usedPlaceholders.contains(CommitLogPlaceholder.PATH_FROM_ROOT) || usedPlaceholders.contains(CommitLogPlaceholder.PACKAGE_PATH));
+        // the change symbol shows a file with no old version as added, whatever its change type
+        final boolean oldVersions = trackCommittedFiles || usedPlaceholders.contains(CommitLogPlaceholder.OLD_REVISION_NUMBER)
+                                    || usedPlaceholders.contains(CommitLogPlaceholder.CHANGE_SYMBOL);
+        final List<File> fileList = new ArrayList<>(files);
+        final AtomicInteger processedFiles = new AtomicInteger();
+        List<Callable<List<CommitLogEntry>>> batches = new ArrayList<>();
+
+        for (File file : fileList) {
+
+            Change change = changes.get(getFilePath(file));
 
-            CommitLogTemplateParser.TextTemplateNode textTemplateNode = nodes.get(i);
-            String text = textTemplateNode.getText();
+            if (change != null) {
+                commitLogBuilder.setChangeListName(changeListManager.getChangeList(change).getName());
+                break;
+            }
+        }
 
-            if (textTemplateNode.getType() == CommitLogTemplateParser.TextTemplateNodeType.BLOCK_PLACEHOLDER_NODE) {
+        for (int i = 0; i < fileList.size(); i += ENTRY_BATCH_SIZE) {
 
-                if (text.equals("FILE_ENTRY")) {
+            final List<File> batch = fileList.subList(i, Math.min(fileList.size(), i + ENTRY_BATCH_SIZE));
 
-                    i++;
+            batches.add(new Callable<List<CommitLogEntry>>() {
 
-                    List<CommitLogTemplateParser.TextTemplateNode> followingNodes = getFollowingNodes(nodes, i);
-                    CommitLogSection logSection = hasEntries ? buildCommitLogFileEntries(followingNodes, type, entries) : buildCommitLogFileEntry(followingNodes, type, null);
+                public List<CommitLogEntry> call() {
 
-                    i += logSection.getUsedNodes() - 1;
-                    text = logSection.getText();
+                    if (indicator != null) {
+                        indicator.checkCanceled();
+                    }
 
-                } else if (isFilesSectionEndPlaceholder(text)) {
+                    List<CommitLogEntry> result = ApplicationManager.getApplication().runReadAction(new Computable<List<CommitLogEntry>>() {
 
-                    usedNodes = i + 1;
-                    break;
-                }
+                        public List<CommitLogEntry> compute() {
+                            return createCommitLogEntries(project, batch, changes, directoryCache, oldVersions);
+                        }
+                    });
 
-            } else if (textTemplateNode.getType() == CommitLogTemplateParser.TextTemplateNodeType.VALUE_PLACEHOLDER_NODE) {
+                    if (indicator != null) {
 
-                if (text.equals("FILE_COUNT")) {
+                        int processed = processedFiles.addAndGet(batch.size());
 
-                    if (hasEntries) {
-                        text = String.valueOf(entries.size());
+                        indicator.setFraction((double) processed / fileList.size());
+                        indicator.setText2(processed + " of " + fileList.size() + " files");
                     }
 
-                } else {
-                    text = "Illegal Placeholder : $" + text + "$";
+                    return result;
                 }
-            }
-
-            if (hasEntries) {
-                result.append(text);
-            }
+            });
         }
 
-        return new CommitLogSection(result.toString(), usedNodes);
-    }
+        // batches are merged in file order, whichever finishes first
+        final List<CommitLogEntry> pendingOldVersions = new ArrayList<>();
 
-    @NotNull
-    private static CommitLogSection buildCommitLogFileEntries(@NotNull List<CommitLogTemplateParser.TextTemplateNode> followingNodes,
-                                                              Change.Type defaultType, Collection<CommitLogEntry> entries) {
-        int usedNodes = 0;
-        StringBuilder result = new StringBuilder(500);
+        for (List<CommitLogEntry> batchEntries : createCommitLogEntries(batches)) {
 
-        for (CommitLogEntry entry : entries) {
+            for (CommitLogEntry commitLogEntry : batchEntries) {
 
-            CommitLogSection logSection = buildCommitLogFileEntry(followingNodes, defaultType, entry);
+                commitLogBuilder.addCommitLogEntry(commitLogEntry);
 
-            result.append(logSection.getText());
-            usedNodes = logSection.getUsedNodes();
+                if (commitLogEntry.isOldVersionPending()) {
+                    pendingOldVersions.add(commitLogEntry);
+                }
+            }
         }
 
-        return new CommitLogSection(result.toString(), usedNodes);
-    }
-
-    private static CommitLogSection buildCommitLogFileEntry(List<CommitLogTemplateParser.TextTemplateNode> followingNodes,
-                                                            Change.Type defaultType, @Nullable CommitLogEntry entry) {
+        // old versions are only needed once the commit is done, so they are read while the vcs commits
+        if (!pendingOldVersions.isEmpty()) {
 
-        Change.Type type = entry != null ? entry.getChangeType() : defaultType;
-        int usedNodes = 0;
-        StringBuilder result = new StringBuilder(500);
-        FilePath filePath = entry != null ? entry.getFilePath() : null;
+            CommitLogProjectComponent projectComponent = CommitLogProjectComponent.PROJECT_COMPONENTS.get(project);
+            final CommitLogRevisionCache revisionCache = projectComponent != null ? projectComponent.getRevisionCache() : null;
 
-        for (int i = 0; i < followingNodes.size(); i++) {
+            commitLogBuilder.oldVersionCapture = ENTRY_POOL.submit(new Runnable() {
 
-            CommitLogTemplateParser.TextTemplateNode textTemplateNode = followingNodes.get(i);
-            String text = textTemplateNode.getText();
+                public void run() {
 
-            if (textTemplateNode.getType() == CommitLogTemplateParser.TextTemplateNodeType.BLOCK_PLACEHOLDER_NODE) {
+                    for (CommitLogEntry commitLogEntry : pendingOldVersions) {
 
-                if (text.equals("/FILE_ENTRY")) {
-                    usedNodes = i + 1;
-                    break;
-                }
-
-                text = "Illegal section placeholder " + text + " : expecting one of " +
-                        "[" + "/DELETED_FILES" + "]" + ',' +
-                        "[" + "/ADDED_FILES" + "]" + ',' +
-                        "[" + "/MODIFIED_FILES" + "]" +
-                        " or " +
-                        "[" + "ALL_FILES_BY_TYPE" + "]";
-
-            } else if ((textTemplateNode.getType() == CommitLogTemplateParser.TextTemplateNodeType.VALUE_PLACEHOLDER_NODE)
-                    && (entry != null)) {
-
-                switch (text) {
-                    case "FILE_NAME":
-                        text = filePath != null ? filePath.getName() : "<no file>";
-                        break;
-                    case "FILE_PATH":
-                        text = filePath != null ? filePath.getPath() : "<no file>";
-                        break;
-                    case "FILE_ACTION":
-                        if (type == Change.Type.DELETED) {
-                            text = "Removed";
-                        } else if (type == Change.Type.MODIFICATION) {
-                            text = "Modified";
-                        } else if (type == Change.Type.NEW) {
-                            text = "Added";
-                        }
-                        break;
-                    case "ROOT_NAME":
-                        text = entry.getVcsRootName();
-                        break;
-                    case "PACKAGE_NAME":
-                        text = entry.getPackageName();
-                        break;
-                    case "PACKAGE_PATH":
-                    case "PATH_FROM_ROOT":
-                        text = entry.getPathFromRoot();
-                        break;
-                    case "OLD_REVISION_NUMBER":
-                        if ((entry.getOldVersion() == null) || (type == Change.Type.NEW)) {
-                            text = "Added";
-                        } else {
-                            text = entry.getOldVersion();
+                        if ((indicator != null) && indicator.isCanceled()) {
+                            return;
                         }
-                        break;
-                    case "NEW_REVISION_NUMBER":
-                        if ((entry.getNewVersion() == null) || (type == Change.Type.DELETED)) {
-                            text = "Removed";
-                        } else {
-                            text = entry.getNewVersion();
-                        }
-                        break;
-                    case "CHANGE_SYMBOL":
-                        if ((entry.getOldVersion() == null) || (type == Change.Type.NEW)) {
-                            text = "+";
-                        } else if (type == Change.Type.DELETED) {
-                            text = "-";
-                        } else {
-                            text = "*";
+
+                        try {
+                            commitLogEntry.captureOldVersion(revisionCache);
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
                         }
-                        break;
-                    default:
-                        text = "Illegal Placeholder : $" + text + "$";
-                        break;
-                }
-            }
+                    }
 
-            result.append(text);
+                    if (revisionCache != null) {
+                        CommitLogProjectComponent.log(revisionCache.toString());
+                    }
+                }
+            });
         }
 
-        return new CommitLogSection(result.toString(), usedNodes);
+        return commitLogBuilder;
     }
 
-    private static List<CommitLogTemplateParser.TextTemplateNode> getFollowingNodes(@NotNull List<CommitLogTemplateParser.TextTemplateNode> textTemplateNodes, int start) {
+    private static List<List<CommitLogEntry>> createCommitLogEntries(List<Callable<List<CommitLogEntry>>> batches) {
 
-        return textTemplateNodes.subList(start, textTemplateNodes.size());
-    }
+        List<List<CommitLogEntry>> result = new ArrayList<>(batches.size());
 
-    private static String toString(@NotNull Collection collection) {
+        try {
 
-        StringBuilder stringBuilder = new StringBuilder(100);
+            if (batches.size() == 1) {
+                result.add(batches.get(0).call());
+                return result;
+            }
 
-        for (Iterator iterator = collection.iterator(); iterator.hasNext(); ) {
+            for (Future<List<CommitLogEntry>> batch : ENTRY_POOL.invokeAll(batches)) {
+                result.add(batch.get());
+            }
 
-            stringBuilder.append(iterator.next());
+        } catch (ExecutionException e) {
 
-            if (iterator.hasNext()) {
-                stringBuilder.append(", ");
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
+
+            throw new IllegalStateException(e.getCause());
+
+        } catch (InterruptedException e) {
+
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
         }
 
-        return stringBuilder.toString();
+        return result;
     }
 
-    public String getChangeListName() {
-        return this.changeListName;
+    /**
+     * @return the placeholders the template uses, or all of them when it does not compile - the render reports that
+     */
+    private static Set<CommitLogPlaceholder> getUsedPlaceholders(String template) {
+
+        try {
+            return CommitLogTemplateCache.getInstance().getCompiledTemplate(template).getUsedPlaceholders();
+        } catch (CommitLogTemplateParser.TextTemplateParserException e) {
+            return EnumSet.allOf(CommitLogPlaceholder.class);
+        }
     }
 
-    private void setChangeListName(String changeListName) {
-        this.changeListName = changeListName;
+    private static FilePath getFilePath(File file) {
+        return file.exists() ? VcsUtil.getFilePath(file) : VcsUtil.getFilePathForDeletedFile(file.getPath(), false);
     }
 
-    public static CommitLogBuilder createCommitLogBuilder(String template,
-                                                          String commitMessage,
-                                                          Project project,
-                                                          Collection<File> files) {
+    /**
+     * The changes of the project by the path before and after the change, taken once so that the batches do not each
+     * go back to the change list manager.
+     */
+    private static Map<FilePath, Change> getChangeSnapshot(ChangeListManager changeListManager) {
 
-        CommitLogBuilder commitLogBuilder = new CommitLogBuilder(template, commitMessage);
+        Map<FilePath, Change> result = new HashMap<>();
 
-        for (File file : files) {
+        for (Change change : changeListManager.getAllChanges()) {
 
-            FilePath filePath = file.exists() ? VcsUtil.getFilePath(file) : VcsUtil.getFilePathForDeletedFile(file.getPath(), false);
+            ContentRevision afterRevision = change.getAfterRevision();
+            ContentRevision beforeRevision = change.getBeforeRevision();
 
-            ChangeListManager changeListManager = ChangeListManager.getInstance(project);
-            Change change = changeListManager.getChange(filePath);
+            if (beforeRevision != null) {
+                result.put(beforeRevision.getFile(), change);
+            }
 
-            if (commitLogBuilder.getChangeListName() == null) {
-                commitLogBuilder.setChangeListName(changeListManager.getChangeList(change).getName());
+            if (afterRevision != null) {
+                result.put(afterRevision.getFile(), change);
             }
+        }
+
+        return result;
+    }
+
+    private static List<CommitLogEntry> createCommitLogEntries(Project project,
+                                                               List<File> files,
+                                                               Map<FilePath, Change> changes,
+                                                               CommitLogDirectoryCache directoryCache,
+                                                               boolean oldVersions) {
+
+        List<CommitLogEntry> result = new ArrayList<>(files.size());
+
+        for (File file : files) {
+
+            FilePath filePath = getFilePath(file);
+            Change change = changes.get(filePath);
 
             if (change != null) {
 
                 Change.Type changeType = change.getType();
                 ContentRevision beforeRevision = changeType == Change.Type.NEW ? null : change.getBeforeRevision();
-                VirtualFile vcsRoot = VcsUtil.getVcsRootFor(project, filePath);
-                String vcsRootName = vcsRoot != null ? vcsRoot.getPresentableName() : "";
-                AbstractVcs vcs = VcsUtil.getVcsFor(project, filePath);
+                CommitLogDirectoryCache.Directory parent = directoryCache.getParentDirectory(filePath);
+                VirtualFile vcsRoot;
+                AbstractVcs vcs;
+
+                // a directory may be a vcs root itself, so only a plain file shares its parent's root
+                if ((parent != null) && (!filePath.isDirectory())) {
+                    vcsRoot = parent.getVcsRoot();
+                    vcs = parent.getVcs();
+                } else {
+                    vcsRoot = VcsUtil.getVcsRootFor(project, filePath);
+                    vcs = VcsUtil.getVcsFor(project, filePath);
+                }
 
                 if (vcs != null) {
 
-                    String packageName = getPackageName(project, filePath);
-                    String pathFromRoot = getPathFromRoot(vcsRoot, filePath);
+                    String vcsRootName = vcsRoot != null ? vcsRoot.getPresentableName() : "";
+                    String packageName = parent != null ? parent.getPackageName() : "";
+                    String pathFromRoot = (parent != null) && (vcsRoot != null) && vcsRoot.equals(parent.getVcsRoot())
+                                          ? parent.getPathFromRoot() : "";
                     CommitLogEntry commitLogEntry = new CommitLogEntry(file, filePath, vcsRootName, pathFromRoot, packageName, vcs, changeType);
 
-                    commitLogBuilder.addCommitLogEntry(commitLogEntry);
-
-                    if (beforeRevision != null) {
-                        commitLogEntry.setOldVersion(beforeRevision.getRevisionNumber().asString());
+                    if ((beforeRevision != null) && oldVersions) {
+                        commitLogEntry.setBeforeRevision(beforeRevision);
                     }
+
+                    result.add(commitLogEntry);
                 }
             }
         }
 
-        return commitLogBuilder;
-    }
-
-    private static String getPathFromRoot(VirtualFile vcsRoot, FilePath filePath) {
-
-        String pathFromRoot = null;
-        FilePath path = filePath.getParentPath();
-
-        while ((path != null) && (!vcsRoot.equals(path.getVirtualFile()))) {
-
-            String name = path.getName();
-            pathFromRoot = pathFromRoot != null ? name + '/' + pathFromRoot : name;
-            path = path.getParentPath();
-        }
-
-        return pathFromRoot != null ? pathFromRoot : "";
-    }
-
-    private static String getPackageName(Project project, FilePath filePath) {
-
-        VirtualFile parent = filePath.getVirtualFileParent();
-        ProjectFileIndex projectFileIndex = ProjectRootManager.getInstance(project).getFileIndex();
-        String text;
-
-        if (parent != null) {
-            text = projectFileIndex.getPackageNameByDirectory(parent);
-        } else {
-            text = "";
-        }
-
-        return text;
+        return result;
     }
 }
@@ -1,28 +1,20 @@
 package com.anecdote.ideaplugins.commitlog;
 
+import com.intellij.CommonBundle;
 import com.intellij.openapi.Disposable;
-import com.intellij.openapi.editor.Document;
-import com.intellij.openapi.editor.Editor;
-import com.intellij.openapi.editor.EditorFactory;
-import com.intellij.openapi.editor.EditorSettings;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.vcs.AbstractVcs;
+import com.intellij.openapi.ui.Messages;
 import com.intellij.openapi.vcs.CheckinProjectPanel;
-import com.intellij.openapi.vcs.FilePath;
 import com.intellij.openapi.vcs.VcsException;
-import com.intellij.openapi.vcs.changes.Change;
 import com.intellij.openapi.vcs.checkin.CheckinHandler;
-import com.intellij.openapi.vcs.diff.DiffProvider;
-import com.intellij.openapi.vcs.history.VcsHistoryProvider;
-import com.intellij.openapi.vcs.history.VcsHistorySession;
-import com.intellij.openapi.vcs.history.VcsRevisionNumber;
 import com.intellij.openapi.vcs.ui.RefreshableOnComponent;
-import com.intellij.openapi.vfs.VirtualFile;
 import org.jetbrains.annotations.NotNull;
-import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
 import java.awt.*;
+import java.io.IOException;
 import java.text.DateFormat;
 import java.util.*;
 import java.util.List;
@@ -53,9 +45,24 @@ public class CommitLogCheckinHandler extends CheckinHandler {
 
         if (this.projectComponent.isGenerateTextualCommitLog()) {
 
+            CompiledCommitLogTemplate logTemplate;
+
+            // a broken template is reported now, while the commit can still be called off, rather than in the log
+            try {
+                logTemplate = this.projectComponent.getCompiledCommitLogTemplate();
+            } catch (CommitLogTemplateParser.TextTemplateParserException e) {
+
+                int result = Messages.showDialog(this.project,
+                        "Error parsing Commit Log Template :\n" + e.getMessage() + "\n\nCommit without a commit log?",
+                        "Error Generating Commit Log", new String[]{CommonBundle.getYesButtonText(),
+                                CommonBundle.getNoButtonText()}, 0, Messages.getErrorIcon()
+                );
+
+                return result == 0 ? returnResult : CheckinHandler.ReturnResult.CANCEL;
+            }
+
             try {
-                List affectedVcses = new ArrayList();
-                this.commitLogBuilder = CommitLogBuilder.createCommitLogBuilder(this.projectComponent.getTextualCommitLogTemplate(), this.panel.getCommitMessage(), this.panel.getProject(), this.panel.getFiles());
+                this.commitLogBuilder = CommitLogBuilder.createCommitLogBuilder(logTemplate.getTemplateText(), this.panel.getCommitMessage(), this.panel.getProject(), this.panel.getFiles(), true);
             } catch (Throwable e) {
                 e.printStackTrace();
             }
@@ -107,109 +114,66 @@ public class CommitLogCheckinHandler extends CheckinHandler {
         CommitLogProjectComponent.log("CommitLogCheckinHandler::outputCommitLog() Entered");
         CommitLogProjectComponent.log("CommitLogCheckinHandler.outputCommitLog : failed = " + failed);
 
-        updateEntryVersions();
-        this.commitLogBuilder.removeUncommittedEntries();
+        final CommitLogBuilder commitLogBuilder = this.commitLogBuilder;
         final Date date = new Date();
-        String commitLog;
 
-        try {
-            commitLog = this.commitLogBuilder.buildCommitLog(date);
-        } catch (CommitLogTemplateParser.TextTemplateParserException e) {
-            commitLog = e.getMessage();
+        if (commitLogBuilder == null) {
+            return;
         }
 
-        final String changeListName = this.commitLogBuilder.getChangeListName();
+        new Task.Backgroundable(this.project, "Generating Commit Log", true) {
 
-        final String finalCommitLog = commitLog;
+            private final StringBuilder commitLog = new StringBuilder(500);
 
-        SwingUtilities.invokeLater(new Runnable() {
+            public void run(@NotNull ProgressIndicator indicator) {
 
-            public void run() {
+                indicator.setText("Resolving committed revisions");
+                new CommitLogRevisionResolver().updateNewVersions(commitLogBuilder.getCommitLogEntries(), indicator);
+                indicator.checkCanceled();
 
-                CommitLogProjectComponent.log("CommitLogCheckinHandler::outputCommitLog Runnable.run() Entered");
-                EditorFactory editorFactory = EditorFactory.getInstance();
-                Document document = editorFactory.createDocument(finalCommitLog);
-                Editor viewer = editorFactory.createViewer(document, CommitLogCheckinHandler.this.project);
-                EditorSettings editorsettings = viewer.getSettings();
-                editorsettings.setFoldingOutlineShown(false);
-                editorsettings.setLineMarkerAreaShown(false);
-                editorsettings.setLineNumbersShown(false);
-                editorsettings.setRightMarginShown(false);
-                String tabTitle = DateFormat.getDateTimeInstance(3, 3).format(date) + " : " + changeListName;
+                indicator.setText("Removing uncommitted files");
+                indicator.setIndeterminate(true);
+                commitLogBuilder.removeUncommittedEntries();
 
-                if (failed) {
-                    tabTitle = tabTitle + " [FAILED]";
+                // the committed files have moved on from the revisions they were changed from
+                for (CommitLogEntry commitLogEntry : commitLogBuilder.getCommitLogEntries()) {
+                    CommitLogCheckinHandler.this.projectComponent.getRevisionCache().invalidate(commitLogEntry.getFilePath());
                 }
 
-                CommitLogWindow window = CommitLogCheckinHandler.this.projectComponent.getCommitLogWindow();
-                window.addCommitLog(tabTitle, viewer);
-                window.ensureVisible(CommitLogCheckinHandler.this.project);
-            }
-        });
-    }
-
-    private void updateEntryVersions() {
-
-        Map<Change.Type, Collection<CommitLogEntry>> entries = this.commitLogBuilder.getCommitLogEntriesByTypeByRoot(null);
-
-        for (Map.Entry mapEntry : entries.entrySet()) {
+                indicator.checkCanceled();
 
-            Set<CommitLogEntry> commitLogEntries = (Set<CommitLogEntry>) mapEntry.getValue();
-
-            for (CommitLogEntry commitLogEntry : commitLogEntries) {
+                indicator.setText("Building commit log");
 
                 try {
-
-                    String version = getCurrentFileVersion(commitLogEntry.getVcs(), commitLogEntry.getFilePath());
-
-                    if (version == null) {
-                        version = commitLogEntry.getOldVersion();
-                    }
-
-                    commitLogEntry.setNewVersion(version);
-
-                } catch (VcsException e) {
-                    e.printStackTrace();
+                    commitLogBuilder.buildCommitLog(date, this.commitLog);
+                } catch (CommitLogTemplateParser.TextTemplateParserException | IOException e) {
+                    this.commitLog.setLength(0);
+                    this.commitLog.append(e.getMessage());
                 }
             }
-        }
-    }
-
-    @Nullable
-    private static String getCurrentFileVersion(@NotNull AbstractVcs vcs, FilePath filePath) throws VcsException {
-
-        String version = null;
-        DiffProvider diffProvider = vcs.getDiffProvider();
-        VirtualFile file = filePath.getVirtualFile();
-
-        if ((diffProvider != null) && (file != null)) {
-
-            VcsRevisionNumber revision = diffProvider.getCurrentRevision(file);
 
-            if (revision != null) {
-                version = revision.asString();
+            public void onSuccess() {
+                showCommitLog(this.commitLog, date, commitLogBuilder.getChangeListName(), failed);
             }
 
-        } else {
-
-            VcsHistoryProvider historyProvider = vcs.getVcsHistoryProvider();
-
-            if (historyProvider != null) {
-
-                VcsHistorySession session = historyProvider.createSessionFor(filePath);
+            public void onCancel() {
+                CommitLogProjectComponent.log("CommitLogCheckinHandler.outputCommitLog : cancelled");
+            }
+        }.queue();
+    }
 
-                if ((session != null) && (!session.getRevisionList().isEmpty())) {
+    private void showCommitLog(CharSequence commitLog, Date date, String changeListName, boolean failed) {
 
-                    VcsRevisionNumber currentRevisionNumber = session.getCurrentRevisionNumber();
+        CommitLogProjectComponent.log("CommitLogCheckinHandler::showCommitLog() Entered");
+        String tabTitle = DateFormat.getDateTimeInstance(3, 3).format(date) + " : " + changeListName;
 
-                    if (currentRevisionNumber != null) {
-                        version = currentRevisionNumber.asString();
-                    }
-                }
-            }
+        if (failed) {
+            tabTitle = tabTitle + " [FAILED]";
         }
 
-        return version;
+        CommitLogWindow window = this.projectComponent.getCommitLogWindow();
+        window.addCommitLog(tabTitle, commitLog);
+        window.ensureVisible(this.project);
     }
 
     private class AfterCheckinConfigPanel implements RefreshableOnComponent {
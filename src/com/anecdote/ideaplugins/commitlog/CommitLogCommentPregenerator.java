@@ -0,0 +1,280 @@
+package com.anecdote.ideaplugins.commitlog;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.vcs.changes.Change;
+import com.intellij.openapi.vcs.changes.ChangeList;
+import com.intellij.openapi.vcs.changes.ChangeListAdapter;
+import com.intellij.openapi.vcs.changes.ChangeListManager;
+import com.intellij.openapi.vcs.changes.ChangesUtil;
+import com.intellij.openapi.vcs.changes.LocalChangeList;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates the commit comment of each change list in the background whenever the list changes, so that Generate
+ * has the comment ready when it is clicked.  Only the lists a change touched are generated again, a little while
+ * after the first change so that a burst of updates is handled once.  A comment is kept with the builder it was
+ * rendered by, so that one asked for with a different commit message need not collect its entries again.
+ */
+final class CommitLogCommentPregenerator {
+
+    private static final long REGENERATE_DELAY_MILLIS = 1000L;
+
+    private static final ScheduledExecutorService GENERATOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+        public Thread newThread(@NotNull Runnable runnable) {
+
+            Thread thread = new Thread(runnable, "Commit Comment Pregenerator");
+            thread.setDaemon(true);
+
+            return thread;
+        }
+    });
+
+    private final Project project;
+    private final CommitLogProjectComponent projectComponent;
+    // by change list name
+    private final Map<String, PregeneratedComment> comments = new HashMap<>();
+    private final Set<String> staleChangeLists = new HashSet<>();
+    private final ChangeListAdapter changeListListener = new ChangeListAdapter() {
+
+        public void changeListChanged(ChangeList list) {
+            markStale(list);
+        }
+
+        public void changeListRemoved(ChangeList list) {
+            forget(list.getName());
+        }
+
+        public void changeListRenamed(ChangeList list, String oldName) {
+            forget(oldName);
+            markStale(list);
+        }
+
+        public void changesAdded(Collection<Change> changes, ChangeList toList) {
+            markStale(toList);
+        }
+
+        public void changesRemoved(Collection<Change> changes, ChangeList fromList) {
+            markStale(fromList);
+        }
+
+        public void changesMoved(Collection<Change> changes, ChangeList fromList, ChangeList toList) {
+            markStale(fromList);
+            markStale(toList);
+        }
+    };
+    private boolean listening;
+    private boolean regenerationScheduled;
+
+    CommitLogCommentPregenerator(Project project, CommitLogProjectComponent projectComponent) {
+        this.project = project;
+        this.projectComponent = projectComponent;
+    }
+
+    void startListening() {
+
+        ChangeListManager.getInstance(this.project).addChangeListListener(this.changeListListener);
+
+        synchronized (this) {
+            this.listening = true;
+        }
+
+        regenerateAll();
+    }
+
+    void stopListening() {
+
+        ChangeListManager.getInstance(this.project).removeChangeListListener(this.changeListListener);
+
+        synchronized (this) {
+            this.listening = false;
+            this.comments.clear();
+            this.staleChangeLists.clear();
+        }
+    }
+
+    /**
+     * Generates every change list's comment again, as when the comment template changes.
+     */
+    void regenerateAll() {
+
+        if (!isListening()) {
+            return;
+        }
+
+        for (LocalChangeList changeList : ChangeListManager.getInstance(this.project).getChangeLists()) {
+            markStale(changeList);
+        }
+    }
+
+    private synchronized boolean isListening() {
+        return this.listening;
+    }
+
+    private synchronized void markStale(@Nullable ChangeList changeList) {
+
+        if ((changeList == null) || (!this.listening)) {
+            return;
+        }
+
+        this.comments.remove(changeList.getName());
+        this.staleChangeLists.add(changeList.getName());
+
+        if (!this.regenerationScheduled) {
+
+            this.regenerationScheduled = true;
+            GENERATOR.schedule(new Runnable() {
+
+                public void run() {
+                    regenerate();
+                }
+            }, REGENERATE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void forget(String changeListName) {
+        this.comments.remove(changeListName);
+        this.staleChangeLists.remove(changeListName);
+    }
+
+    private void regenerate() {
+
+        Set<String> changeListNames;
+
+        synchronized (this) {
+
+            changeListNames = new HashSet<>(this.staleChangeLists);
+            this.staleChangeLists.clear();
+            this.regenerationScheduled = false;
+        }
+
+        String template = this.projectComponent.getTextualCommitCommentTemplate();
+
+        for (final LocalChangeList changeList : ChangeListManager.getInstance(this.project).getChangeLists()) {
+
+            if ((!changeListNames.contains(changeList.getName())) || this.project.isDisposed()) {
+                continue;
+            }
+
+            Set<File> files = ApplicationManager.getApplication().runReadAction(new Computable<Set<File>>() {
+
+                public Set<File> compute() {
+                    return getFiles(changeList.getChanges());
+                }
+            });
+
+            if (files.isEmpty()) {
+                continue;
+            }
+
+            try {
+
+                String commitMessage = changeList.getComment();
+                CommitLogBuilder commitLogBuilder = CommitLogBuilder.createCommitLogBuilder(template, commitMessage, this.project, files, false);
+                String comment = commitLogBuilder.buildCommitLog(new Date());
+
+                synchronized (this) {
+
+                    // a list that changed again while it was generated waits for the next generation
+                    if (this.listening && (!this.staleChangeLists.contains(changeList.getName()))) {
+                        this.comments.put(changeList.getName(), new PregeneratedComment(template, files, commitMessage, commitLogBuilder, comment));
+                    }
+                }
+
+            } catch (CommitLogTemplateParser.TextTemplateParserException e) {
+                // Generate reports a broken template when it is clicked
+                return;
+            } catch (RuntimeException e) {
+                CommitLogProjectComponent.log("CommitLogCommentPregenerator.regenerate : " + changeList.getName() + " : " + e);
+            }
+        }
+    }
+
+    static Set<File> getFiles(Collection<Change> changes) {
+
+        Set<File> result = new HashSet<>();
+
+        for (Change change : changes) {
+            result.add(ChangesUtil.getFilePath(change).getIOFile());
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the comment generated for exactly these files, with the template and commit message given, or null if
+     *         there is none or the template shows the time, which will have moved on since
+     */
+    @Nullable
+    String getComment(@NotNull String template, @NotNull Collection<File> files, String commitMessage)
+            throws CommitLogTemplateParser.TextTemplateParserException {
+
+        PregeneratedComment comment = findComment(template, files);
+
+        if ((comment == null) || (!Objects.equals(comment.commitMessage, commitMessage))) {
+            return null;
+        }
+
+        CompiledCommitLogTemplate compiledTemplate = CommitLogTemplateCache.getInstance().getCompiledTemplate(template);
+        boolean showsTime = compiledTemplate.usesPlaceholder(CommitLogPlaceholder.TIME)
+                            || compiledTemplate.usesPlaceholder(CommitLogPlaceholder.DATE)
+                            || compiledTemplate.usesPlaceholder(CommitLogPlaceholder.DATE_TIME);
+
+        return showsTime ? null : comment.comment;
+    }
+
+    /**
+     * @return the builder, with its entries collected, that the comment for exactly these files was generated with,
+     *         or null if there is none.  Rendering it again for another commit message is left to the caller, off the
+     *         EDT.
+     */
+    @Nullable
+    CommitLogBuilder getCommitLogBuilder(@NotNull String template, @NotNull Collection<File> files) {
+
+        PregeneratedComment comment = findComment(template, files);
+
+        return comment != null ? comment.commitLogBuilder : null;
+    }
+
+    @Nullable
+    private synchronized PregeneratedComment findComment(String template, Collection<File> files) {
+
+        Set<File> fileSet = new HashSet<>(files);
+
+        for (PregeneratedComment comment : this.comments.values()) {
+
+            if (comment.template.equals(template) && comment.files.equals(fileSet)) {
+                return comment;
+            }
+        }
+
+        return null;
+    }
+
+    private static final class PregeneratedComment {
+
+        private final String template;
+        private final Set<File> files;
+        private final String commitMessage;
+        private final CommitLogBuilder commitLogBuilder;
+        private final String comment;
+
+        private PregeneratedComment(String template, Set<File> files, String commitMessage, CommitLogBuilder commitLogBuilder, String comment) {
+            this.template = template;
+            this.files = files;
+            this.commitMessage = commitMessage;
+            this.commitLogBuilder = commitLogBuilder;
+            this.comment = comment;
+        }
+    }
+}
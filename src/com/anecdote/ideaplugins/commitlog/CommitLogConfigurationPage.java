@@ -8,8 +8,17 @@ import com.intellij.openapi.editor.EditorFactory;
 import com.intellij.openapi.editor.EditorSettings;
 import com.intellij.openapi.editor.event.DocumentEvent;
 import com.intellij.openapi.editor.event.DocumentListener;
+import com.intellij.openapi.editor.markup.EffectType;
+import com.intellij.openapi.editor.markup.HighlighterLayer;
+import com.intellij.openapi.editor.markup.HighlighterTargetArea;
+import com.intellij.openapi.editor.markup.RangeHighlighter;
+import com.intellij.openapi.editor.markup.TextAttributes;
 import com.intellij.openapi.fileTypes.FileType;
 import com.intellij.openapi.fileTypes.FileTypeManager;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.ui.DialogWrapper;
 import com.intellij.openapi.ui.Messages;
 import com.intellij.openapi.util.IconLoader;
@@ -19,10 +28,20 @@ import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 import java.awt.*;
 import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 public class CommitLogConfigurationPage extends JPanel {
 
@@ -35,6 +54,18 @@ public class CommitLogConfigurationPage extends JPanel {
 
     private Document templateDocument;
 
+    // the nodes of the template as it is now, reparsed from those of the previous edit - null if it does not parse
+    @Nullable
+    private CommitLogTemplateNodeTable templateNodes;
+
+    // compiled by the last sample render, and kept out of the template cache until it is saved, so the templates in
+    // use are not evicted by every intermediate edit
+    @Nullable
+    private CompiledCommitLogTemplate compiledTemplate;
+
+    @Nullable
+    private RangeHighlighter templateErrorHighlighter;
+
     private Editor sampleEditor;
 
     private Document sampleDocument;
@@ -45,13 +76,51 @@ public class CommitLogConfigurationPage extends JPanel {
 
     private static final String SAMPLE_COMMIT_MESSAGE = "This is a sample commit message.  I hope you usually write more than this for your commits ;^)";
 
+    // how long typing has to pause before the sample is rendered again
+    private static final int SAMPLE_RENDER_DELAY_MILLIS = 250;
+
+    private static final ExecutorService SAMPLE_RENDERER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+        public Thread newThread(Runnable runnable) {
+
+            Thread thread = new Thread(runnable, "Commit Log Sample Renderer");
+            thread.setDaemon(true);
+
+            return thread;
+        }
+    });
+
+    private final Timer sampleRenderTimer = new Timer(SAMPLE_RENDER_DELAY_MILLIS, new ActionListener() {
+
+        public void actionPerformed(ActionEvent e) {
+            CommitLogConfigurationPage.this.updateSampleDocument();
+        }
+    });
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    // bumped for every render, so that only the latest one is shown
+    private int sampleGeneration;
+
+    // a large synthetic commit shows what a template costs on a real one, which the built in sample is too small to
+    private final JCheckBox largeSampleCheckBox = new JCheckBox("Large sample commit");
+
+    private final JSpinner sampleFilesSpinner = new JSpinner(new SpinnerNumberModel(5000, 1, 100000, 500));
+
+    private final JSpinner sampleRootsSpinner = new JSpinner(new SpinnerNumberModel(3, 1, 100, 1));
+
+    private final JLabel sampleStatisticsLabel = new JLabel(" ");
+
+    // cancelled when a newer render starts, which stops this one at its next file
+    private ProgressIndicator sampleRenderIndicator;
+
     private DocumentListener templateDocumentListener = new DocumentListener() {
 
         public void beforeDocumentChange(DocumentEvent event) {
         }
 
         public void documentChanged(DocumentEvent event) {
-            CommitLogConfigurationPage.this.templateDocumentChanged();
+            CommitLogConfigurationPage.this.templateDocumentChanged(event);
         }
     };
 
@@ -94,6 +163,7 @@ public class CommitLogConfigurationPage extends JPanel {
 
         super(new BorderLayout());
         this.template = template;
+        this.sampleRenderTimer.setRepeats(false);
         EditorFactory editorFactory = EditorFactory.getInstance();
 
         if (editorFactory != null) {
@@ -107,6 +177,8 @@ public class CommitLogConfigurationPage extends JPanel {
 
                 initEditor(this.templateEditor);
             }
+
+            validateTemplate(null);
         }
 
         JToolBar templateEditorToolBar = new JToolBar();
@@ -139,6 +211,7 @@ public class CommitLogConfigurationPage extends JPanel {
         }
 
         sampleEditorPanel.add(comp, "Center");
+        sampleEditorPanel.add(createSampleToolBar(), "North");
 
         JTextArea referenceEditor = new JTextArea(CommitLogProjectComponent.readResourceAsString("/resources/CommitLogTemplateReference.txt"));
 
@@ -170,60 +243,264 @@ public class CommitLogConfigurationPage extends JPanel {
         add(splitPane, "Center");
     }
 
-    private void templateDocumentChanged() {
+    private JComponent createSampleToolBar() {
+
+        ActionListener sampleChanged = new ActionListener() {
+
+            public void actionPerformed(ActionEvent e) {
+
+                boolean largeSample = CommitLogConfigurationPage.this.largeSampleCheckBox.isSelected();
+
+                CommitLogConfigurationPage.this.sampleFilesSpinner.setEnabled(largeSample);
+                CommitLogConfigurationPage.this.sampleRootsSpinner.setEnabled(largeSample);
+                CommitLogConfigurationPage.this.sampleRenderTimer.restart();
+            }
+        };
+        ChangeListener sampleSizeChanged = new ChangeListener() {
+
+            public void stateChanged(ChangeEvent e) {
+                CommitLogConfigurationPage.this.sampleRenderTimer.restart();
+            }
+        };
+
+        this.largeSampleCheckBox.addActionListener(sampleChanged);
+        this.sampleFilesSpinner.addChangeListener(sampleSizeChanged);
+        this.sampleRootsSpinner.addChangeListener(sampleSizeChanged);
+        this.sampleFilesSpinner.setEnabled(false);
+        this.sampleRootsSpinner.setEnabled(false);
+
+        JPanel result = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        result.add(this.largeSampleCheckBox);
+        result.add(new JLabel("Files :"));
+        result.add(this.sampleFilesSpinner);
+        result.add(new JLabel("Roots :"));
+        result.add(this.sampleRootsSpinner);
+        result.add(this.sampleStatisticsLabel);
+
+        return result;
+    }
+
+    private void templateDocumentChanged(DocumentEvent event) {
 
         this.modified = true;
+        // a render under way is of the text before this edit
+        this.sampleGeneration++;
+
+        validateTemplate(event);
 
-        updateSampleDocument();
+        this.sampleRenderTimer.restart();
 
         this.resetTemplateAction.setEnabled(!this.templateDocument.getText().equals(this.template.getDefaultTemplateText()));
     }
 
+    /**
+     * Parses the template after an edit, reusing what it can of the last parse, and underlines the first error.  Only
+     * the parse is done here - unknown and misplaced placeholders are found when the sample render compiles the
+     * template, off the EDT.
+     */
+    private void validateTemplate(@Nullable DocumentEvent event) {
+
+        String templateText = this.templateDocument.getText();
+        CommitLogTemplateNodeTable previousNodes = this.templateNodes;
+        CommitLogTemplateParser parser = new CommitLogTemplateParser();
+
+        this.templateNodes = null;
+
+        try {
+
+            this.templateNodes = (event != null) && (previousNodes != null)
+                                 ? parser.reparseTextTemplate(previousNodes, templateText, event.getOffset(), event.getOldLength(), event.getNewLength())
+                                 : parser.parseTextTemplate(templateText);
+
+            showTemplateError(null);
+
+        } catch (CommitLogTemplateParser.TextTemplateParserException e) {
+            showTemplateError(e);
+        }
+    }
+
+    private void showTemplateError(@Nullable CommitLogTemplateParser.TextTemplateParserException error) {
+
+        if (this.templateEditor == null) {
+            return;
+        }
+
+        if (this.templateErrorHighlighter != null) {
+            this.templateEditor.getMarkupModel().removeHighlighter(this.templateErrorHighlighter);
+            this.templateErrorHighlighter = null;
+        }
+
+        int length = this.templateDocument.getTextLength();
+
+        if ((error != null) && (length > 0)) {
+
+            int start = Math.max(0, Math.min(error.getLocation(), length - 1));
+            TextAttributes attributes = new TextAttributes();
+
+            attributes.setEffectColor(Color.RED);
+            attributes.setEffectType(EffectType.WAVE_UNDERSCORE);
+            this.templateErrorHighlighter = this.templateEditor.getMarkupModel().addRangeHighlighter(start, start + 1,
+                    HighlighterLayer.ERROR, attributes, HighlighterTargetArea.EXACT_RANGE);
+            this.templateErrorHighlighter.setErrorStripeTooltip(error.getMessage());
+        }
+    }
+
+    /**
+     * Renders the template against the sample commit in the background, cancelling any render still under way.  The
+     * sample document is only updated if no newer render has been started by the time this one is done.
+     */
     private void updateSampleDocument() {
 
         final String template = this.templateDocument != null ? this.templateDocument.getText() : "NO TEMPLATE";
+        final int generation = ++this.sampleGeneration;
+        final int sampleFiles = this.largeSampleCheckBox.isSelected() ? (Integer) this.sampleFilesSpinner.getValue() : 0;
+        final int sampleRoots = (Integer) this.sampleRootsSpinner.getValue();
 
-        Application application = ApplicationManager.getApplication();
+        final ProgressIndicator indicator = new EmptyProgressIndicator();
 
-        try {
+        if (this.sampleRenderIndicator != null) {
+            this.sampleRenderIndicator.cancel();
+        }
+
+        this.sampleRenderIndicator = indicator;
+
+        SAMPLE_RENDERER.execute(new Runnable() {
 
-            CommitLogBuilder sampleCommitLogBuilder = new CommitLogBuilder(template, "This is a sample commit message.  " +
-                    "I hope you usually write more than this for your commits ;^)");
+            public void run() {
+
+                final RenderedSample[] sample = new RenderedSample[1];
+
+                if (indicator.isCanceled()) {
+                    return;
+                }
 
-            addSampleCommitLogEntry(sampleCommitLogBuilder, "ModifiedClass1", Change.Type.MODIFICATION, "MyVCSModule");
-            addSampleCommitLogEntry(sampleCommitLogBuilder, "ModifiedClass2", Change.Type.MODIFICATION, "MyVCSModule");
-            addSampleCommitLogEntry(sampleCommitLogBuilder, "ObsoleteClass", Change.Type.DELETED, "MyVCSModule");
-            addSampleCommitLogEntry(sampleCommitLogBuilder, "NewClass", Change.Type.NEW, "MyVCSModule");
-            addSampleCommitLogEntry(sampleCommitLogBuilder, "ModifiedClass1", Change.Type.MODIFICATION, "AnotherVCSModule");
-            addSampleCommitLogEntry(sampleCommitLogBuilder, "ModifiedClass2", Change.Type.MODIFICATION, "AnotherVCSModule");
+                try {
 
-            final String sample = sampleCommitLogBuilder.buildCommitLog(new Date());
+                    // the render checks for cancellation as it goes, against the indicator it runs under
+                    ProgressManager.getInstance().runProcess(new Runnable() {
 
-            if (application != null){
+                        public void run() {
+                            sample[0] = renderSample(template, sampleFiles, sampleRoots);
+                        }
+                    }, indicator);
+
+                } catch (ProcessCanceledException e) {
+                    return;
+                }
+
+                SwingUtilities.invokeLater(new Runnable() {
 
-                application.runWriteAction(new Runnable() {
                     public void run() {
-                        CommitLogConfigurationPage.this.sampleDocument.setText(sample);
+
+                        Application application = ApplicationManager.getApplication();
+
+                        if ((generation != CommitLogConfigurationPage.this.sampleGeneration) || (application == null)) {
+                            return;
+                        }
+
+                        application.runWriteAction(new Runnable() {
+
+                            public void run() {
+                                CommitLogConfigurationPage.this.sampleDocument.setText(sample[0].text);
+                            }
+                        });
+                        CommitLogConfigurationPage.this.sampleStatisticsLabel.setText(sample[0].statistics);
+                        CommitLogConfigurationPage.this.compiledTemplate = sample[0].compiledTemplate;
+
+                        if (sample[0].error != null) {
+                            showTemplateError(sample[0].error);
+                        }
                     }
                 });
             }
+        });
+    }
+
+    /**
+     * Renders the template against the built in sample commit or, given a number of files, a synthetic commit of that
+     * many spread over the roots, timing the parse and the render separately.
+     */
+    private static RenderedSample renderSample(String template, int sampleFiles, int sampleRoots) {
+
+        try {
+
+            List<CommitLogEntry> entries = sampleFiles > 0 ? createSyntheticEntries(sampleFiles, sampleRoots) : createSampleEntries();
+
+            // the sample commit is not counted, only the parse and the render
+            long allocatedBefore = getAllocatedBytes();
+            long start = System.nanoTime();
+
+            // parsed here rather than through the template cache, which only the saved templates go in
+            CompiledCommitLogTemplate compiledTemplate = CompiledCommitLogTemplate.compile(template);
+
+            long parseTime = System.nanoTime() - start;
+            CommitLogBuilder sampleCommitLogBuilder = new CommitLogBuilder(compiledTemplate, SAMPLE_COMMIT_MESSAGE);
+
+            start = System.nanoTime();
+
+            for (CommitLogEntry entry : entries) {
+                sampleCommitLogBuilder.addCommitLogEntry(entry);
+            }
+
+            String text = sampleCommitLogBuilder.buildCommitLog(new Date());
+            long renderTime = System.nanoTime() - start;
+            long allocatedAfter = getAllocatedBytes();
+
+            String statistics = "Parsed in " + formatMillis(parseTime) + ", rendered " + entries.size() + " files in "
+                                + formatMillis(renderTime) + ", " + text.length() + " chars";
+
+            if ((allocatedBefore >= 0L) && (allocatedAfter >= 0L)) {
+                statistics += ", " + ((allocatedAfter - allocatedBefore) / 1024) + "K allocated";
+            }
+
+            return new RenderedSample(text, statistics, compiledTemplate, null);
 
         } catch (CommitLogTemplateParser.TextTemplateParserException e) {
+            return new RenderedSample(template.substring(0, e.getLocation() + 1) + "<<<ERROR\n" + e.getMessage(), "Template does not parse", null, e);
+        }
+    }
 
-            application.runWriteAction(new Runnable() {
-                public void run() {
-                    CommitLogConfigurationPage.this.sampleDocument.setText(template.substring(0, e.getLocation() + 1) + "<<<ERROR\n" + e.getMessage());
-                }
-            });
+    private static List<CommitLogEntry> createSampleEntries() {
+
+        List<CommitLogEntry> result = new ArrayList<>();
+
+        result.add(createSampleCommitLogEntry("commitlog/samplecommit", "ModifiedClass1", Change.Type.MODIFICATION, "MyVCSModule"));
+        result.add(createSampleCommitLogEntry("commitlog/samplecommit", "ModifiedClass2", Change.Type.MODIFICATION, "MyVCSModule"));
+        result.add(createSampleCommitLogEntry("commitlog/samplecommit", "ObsoleteClass", Change.Type.DELETED, "MyVCSModule"));
+        result.add(createSampleCommitLogEntry("commitlog/samplecommit", "NewClass", Change.Type.NEW, "MyVCSModule"));
+        result.add(createSampleCommitLogEntry("commitlog/samplecommit", "ModifiedClass1", Change.Type.MODIFICATION, "AnotherVCSModule"));
+        result.add(createSampleCommitLogEntry("commitlog/samplecommit", "ModifiedClass2", Change.Type.MODIFICATION, "AnotherVCSModule"));
+
+        return result;
+    }
+
+    /**
+     * @return a commit of mostly modified files, with one in ten new and one in ten deleted, spread over a few dozen
+     *         packages under each root
+     */
+    private static List<CommitLogEntry> createSyntheticEntries(int files, int roots) {
+
+        List<CommitLogEntry> result = new ArrayList<>(files);
+
+        for (int i = 0; i < files; i++) {
+
+            ProgressManager.checkCanceled();
+
+            Change.Type changeType = (i % 10 == 0) ? Change.Type.NEW : (i % 10 == 1) ? Change.Type.DELETED : Change.Type.MODIFICATION;
+            String packagePath = "commitlog/module" + (i % 7) + "/package" + ((i / 7) % 30);
+
+            result.add(createSampleCommitLogEntry(packagePath, "SampleClass" + i, changeType, "SampleVCSModule" + (i % roots)));
         }
+
+        return result;
     }
 
-    private static void addSampleCommitLogEntry(CommitLogBuilder sampleCommitLogBuilder, String className, Change.Type changeType, String vcsRootName) {
+    private static CommitLogEntry createSampleCommitLogEntry(String packagePath, String className, Change.Type changeType, String vcsRootName) {
 
-        File file = new File("c:/sandbox/" + vcsRootName + "/commitlog/samplecommit/" + className + ".java");
+        File file = new File("c:/sandbox/" + vcsRootName + '/' + packagePath + '/' + className + ".java");
 
         CommitLogEntry logEntry = new CommitLogEntry(file, new FilePathImpl(file.getAbsolutePath(), false),
-                vcsRootName, "commitlog/samplecommit", "commitlog.samplecommit", null, changeType);
+                vcsRootName, packagePath, packagePath.replace('/', '.'), null, changeType);
 
         if (changeType == Change.Type.NEW) {
             logEntry.setNewVersion("1.0");
@@ -235,7 +512,41 @@ public class CommitLogConfigurationPage extends JPanel {
             }
         }
 
-        sampleCommitLogBuilder.addCommitLogEntry(logEntry);
+        return logEntry;
+    }
+
+    /**
+     * @return the bytes allocated by this thread so far, or -1 where the JVM does not count them
+     */
+    private static long getAllocatedBytes() {
+
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        return -1L;
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format("%.1fms", nanos / 1000000.0);
+    }
+
+    private static final class RenderedSample {
+
+        private final String text;
+        private final String statistics;
+        @Nullable
+        private final CompiledCommitLogTemplate compiledTemplate;
+        @Nullable
+        private final CommitLogTemplateParser.TextTemplateParserException error;
+
+        private RenderedSample(String text, String statistics, @Nullable CompiledCommitLogTemplate compiledTemplate,
+                               @Nullable CommitLogTemplateParser.TextTemplateParserException error) {
+            this.text = text;
+            this.statistics = statistics;
+            this.compiledTemplate = compiledTemplate;
+            this.error = error;
+        }
     }
 
     private static void initEditor(Editor editor) {
@@ -250,6 +561,13 @@ public class CommitLogConfigurationPage extends JPanel {
 
     public void dispose() {
 
+        this.sampleRenderTimer.stop();
+        this.sampleGeneration++;
+
+        if (this.sampleRenderIndicator != null) {
+            this.sampleRenderIndicator.cancel();
+        }
+
         this.templateDocument.removeDocumentListener(this.templateDocumentListener);
 
         if (this.templateEditor != null) {
@@ -264,8 +582,15 @@ public class CommitLogConfigurationPage extends JPanel {
     }
 
     void save() {
-        this.template.setTemplateText(this.templateDocument.getText());
+
+        String templateText = this.templateDocument.getText();
+
+        this.template.setTemplateText(templateText);
         this.modified = false;
+
+        if ((this.compiledTemplate != null) && this.compiledTemplate.getTemplateText().equals(templateText)) {
+            CommitLogTemplateCache.getInstance().putCompiledTemplate(this.compiledTemplate);
+        }
     }
 
     void load() {
@@ -13,6 +13,8 @@ public class CommitLogConfigurationPanel extends JPanel {
 
     private JTabbedPane _tabbedPane;
 
+    private JSpinner _maxOpenCommitLogsSpinner;
+
     public CommitLogConfigurationPanel(CommitLogProjectComponent projectComponent)
     {
         super(new BorderLayout());
@@ -71,24 +73,37 @@ public class CommitLogConfigurationPanel extends JPanel {
         this._tabbedPane.addTab("Commit Log Template", this._commitLogTemplatePage);
         tabbedPane.addTab("Commit Comment Template", this._commitCommentTemplatePage);
         add(tabbedPane, "Center");
-        add(new JLabel("Version 1.3 : Copyright 2007 - 2009 Anecdote Software.  All Rights Reserved."), "South");
+
+        int maxOpenCommitLogs = projectComponent != null ? projectComponent.getMaxOpenCommitLogs() : CommitLogProjectComponent.DEFAULT_MAX_OPEN_COMMIT_LOGS;
+        this._maxOpenCommitLogsSpinner = new JSpinner(new SpinnerNumberModel(maxOpenCommitLogs, 1, 1000, 1));
+        JPanel maxOpenCommitLogsPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        maxOpenCommitLogsPanel.add(new JLabel("Commit log tabs kept open :"));
+        maxOpenCommitLogsPanel.add(this._maxOpenCommitLogsSpinner);
+
+        JPanel southPanel = new JPanel(new BorderLayout());
+        southPanel.add(maxOpenCommitLogsPanel, "North");
+        southPanel.add(new JLabel("Version 1.3 : Copyright 2007 - 2009 Anecdote Software.  All Rights Reserved."), "South");
+        add(southPanel, "South");
     }
 
     public boolean isModified()
     {
-        return (this._commitCommentTemplatePage.isModified()) || (this._commitLogTemplatePage.isModified());
+        return (this._commitCommentTemplatePage.isModified()) || (this._commitLogTemplatePage.isModified())
+                || (((Integer) this._maxOpenCommitLogsSpinner.getValue()) != this._projectComponent.getMaxOpenCommitLogs());
     }
 
     public void save()
     {
         this._commitCommentTemplatePage.save();
         this._commitLogTemplatePage.save();
+        this._projectComponent.setMaxOpenCommitLogs((Integer) this._maxOpenCommitLogsSpinner.getValue());
     }
 
     public void load()
     {
         this._commitCommentTemplatePage.load();
         this._commitLogTemplatePage.load();
+        this._maxOpenCommitLogsSpinner.setValue(this._projectComponent.getMaxOpenCommitLogs());
     }
 
     public static void main(String[] args)
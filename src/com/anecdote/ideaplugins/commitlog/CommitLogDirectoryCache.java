@@ -0,0 +1,164 @@
+package com.anecdote.ideaplugins.commitlog;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.vcs.AbstractVcs;
+import com.intellij.openapi.vcs.FilePath;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.vcsUtil.VcsUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Resolves the vcs root, vcs, package name and path from root of the directories holding the files of one commit.
+ * Every file in a directory gets the same answers, so each directory is only resolved once per commit log, and a
+ * directory's path from root is built on its parent's.  Entries are built in parallel batches, which share the
+ * one cache.
+ */
+final class CommitLogDirectoryCache {
+
+    private final Project project;
+    private final ProjectFileIndex projectFileIndex;
+    private final boolean packageNames;
+    private final boolean pathsFromRoot;
+    private final ConcurrentMap<FilePath, Directory> directories = new ConcurrentHashMap<>();
+
+    /**
+     * @param packageNames  whether package names are wanted, otherwise they are left null
+     * @param pathsFromRoot whether paths from root are wanted, otherwise they are left empty
+     */
+    CommitLogDirectoryCache(@NotNull Project project, boolean packageNames, boolean pathsFromRoot) {
+        this.project = project;
+        this.projectFileIndex = ProjectRootManager.getInstance(project).getFileIndex();
+        this.packageNames = packageNames;
+        this.pathsFromRoot = pathsFromRoot;
+    }
+
+    /**
+     * @return the resolved parent directory of the file, or null for a file with no parent
+     */
+    @Nullable
+    Directory getParentDirectory(@NotNull FilePath filePath) {
+
+        FilePath parentPath = filePath.getParentPath();
+
+        return parentPath != null ? getDirectory(parentPath) : null;
+    }
+
+    @NotNull
+    Directory getDirectory(@NotNull FilePath path) {
+
+        Directory result = this.directories.get(path);
+
+        if (result == null) {
+
+            // resolving is repeatable, so when two batches race for a directory either answer will do
+            Directory resolved = resolveDirectory(path);
+
+            result = this.directories.putIfAbsent(path, resolved);
+
+            if (result == null) {
+                result = resolved;
+            }
+        }
+
+        return result;
+    }
+
+    private Directory resolveDirectory(FilePath path) {
+
+        VirtualFile virtualFile = path.getVirtualFile();
+        VirtualFile vcsRoot = VcsUtil.getVcsRootFor(this.project, path);
+        AbstractVcs vcs = VcsUtil.getVcsFor(this.project, path);
+        String packageName = null;
+        String pathFromRoot = "";
+
+        if (this.packageNames) {
+            packageName = virtualFile != null ? this.projectFileIndex.getPackageNameByDirectory(virtualFile) : "";
+        }
+
+        if (this.pathsFromRoot) {
+            pathFromRoot = getPathFromRoot(path, virtualFile, vcsRoot);
+        }
+
+        return new Directory(vcsRoot, vcs, packageName, pathFromRoot);
+    }
+
+    private String getPathFromRoot(FilePath path, VirtualFile virtualFile, VirtualFile vcsRoot) {
+
+        if ((vcsRoot == null) || vcsRoot.equals(virtualFile)) {
+            return "";
+        }
+
+        FilePath parentPath = path.getParentPath();
+
+        if (parentPath == null) {
+            return path.getName();
+        }
+
+        Directory parent = getDirectory(parentPath);
+
+        if (!vcsRoot.equals(parent.getVcsRoot())) {
+            return getPathFromRoot(vcsRoot, path);
+        }
+
+        String prefix = parent.getPathFromRoot();
+
+        return prefix.isEmpty() ? path.getName() : prefix + '/' + path.getName();
+    }
+
+    /**
+     * The path from the root when the parent is not under the same root, and so has no usable prefix.
+     */
+    private static String getPathFromRoot(VirtualFile vcsRoot, FilePath directory) {
+
+        String pathFromRoot = null;
+        FilePath path = directory;
+
+        while ((path != null) && (!vcsRoot.equals(path.getVirtualFile()))) {
+
+            String name = path.getName();
+            pathFromRoot = pathFromRoot != null ? name + '/' + pathFromRoot : name;
+            path = path.getParentPath();
+        }
+
+        return pathFromRoot != null ? pathFromRoot : "";
+    }
+
+    static final class Directory {
+
+        private final VirtualFile vcsRoot;
+        private final AbstractVcs vcs;
+        private final String packageName;
+        private final String pathFromRoot;
+
+        private Directory(VirtualFile vcsRoot, AbstractVcs vcs, String packageName, String pathFromRoot) {
+            this.vcsRoot = vcsRoot;
+            this.vcs = vcs;
+            this.packageName = packageName;
+            this.pathFromRoot = pathFromRoot;
+        }
+
+        @Nullable
+        VirtualFile getVcsRoot() {
+            return this.vcsRoot;
+        }
+
+        @Nullable
+        AbstractVcs getVcs() {
+            return this.vcs;
+        }
+
+        String getPackageName() {
+            return this.packageName;
+        }
+
+        String getPathFromRoot() {
+            return this.pathFromRoot;
+        }
+    }
+}
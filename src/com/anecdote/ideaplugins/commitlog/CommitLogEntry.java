@@ -3,6 +3,7 @@ package com.anecdote.ideaplugins.commitlog;
 import com.intellij.openapi.vcs.AbstractVcs;
 import com.intellij.openapi.vcs.FilePath;
 import com.intellij.openapi.vcs.changes.Change;
+import com.intellij.openapi.vcs.changes.ContentRevision;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -10,7 +11,12 @@ import java.io.File;
 
 class CommitLogEntry implements Comparable {
 
+    // File.compareTo ignores case on some platforms - sort keys are case folded to order the same way there
+    private static final boolean CASE_INSENSITIVE_PATHS = new File("a").compareTo(new File("A")) == 0;
+
     private final File file;
+    private final int depth;
+    private final String pathSortKey;
     private final FilePath filePath;
     private final Change.Type changeType;
     private final String vcsRootName;
@@ -18,7 +24,10 @@ class CommitLogEntry implements Comparable {
     private final String packageName;
     private final AbstractVcs vcs;
     private String oldVersion;
+    private ContentRevision beforeRevision;
     private String newVersion;
+    // set when the vcs did not answer in time, so whether the file was committed is not known
+    private boolean newVersionUnknown;
 
     CommitLogEntry(File file,
                    FilePath filePath,
@@ -29,6 +38,8 @@ class CommitLogEntry implements Comparable {
                    Change.Type changeType) {
 
         this.file = file;
+        this.depth = getDepth(file);
+        this.pathSortKey = getPathSortKey(file);
         this.vcsRootName = vcsRootName;
         this.pathFromRoot = pathFromRoot;
         this.packageName = (packageName != null ? packageName : "<no package>");
@@ -61,6 +72,14 @@ class CommitLogEntry implements Comparable {
         this.newVersion = newVersion;
     }
 
+    boolean isNewVersionUnknown() {
+        return this.newVersionUnknown;
+    }
+
+    void setNewVersionUnknown() {
+        this.newVersionUnknown = true;
+    }
+
     String getOldVersion() {
         return this.oldVersion;
     }
@@ -69,6 +88,30 @@ class CommitLogEntry implements Comparable {
         this.oldVersion = oldVersion;
     }
 
+    /**
+     * Defers reading the old version until {@link #captureOldVersion()}, which may then run alongside the commit.
+     */
+    void setBeforeRevision(ContentRevision beforeRevision) {
+        this.beforeRevision = beforeRevision;
+    }
+
+    boolean isOldVersionPending() {
+        return this.beforeRevision != null;
+    }
+
+    /**
+     * @param revisionCache the project's, or null to ask the change itself
+     */
+    void captureOldVersion(@Nullable CommitLogRevisionCache revisionCache) {
+
+        if (this.beforeRevision != null) {
+            this.oldVersion = revisionCache != null
+                              ? revisionCache.getOldRevision(this.filePath, this.vcs, this.beforeRevision)
+                              : this.beforeRevision.getRevisionNumber().asString();
+            this.beforeRevision = null;
+        }
+    }
+
     Change.Type getChangeType() {
         return this.changeType;
     }
@@ -113,24 +156,34 @@ class CommitLogEntry implements Comparable {
         return this.file.hashCode();
     }
 
+    /**
+     * Deepest files first, then in path order.  The keys are computed once per entry, so comparing is an int
+     * comparison and, for files at the same depth, a plain string comparison.
+     */
     public int compareTo(@NotNull Object o) {
 
-        int depth = getDepth(this.file);
-        File otherFile = ((CommitLogEntry) o).file;
-        int otherDepth = getDepth(otherFile);
+        CommitLogEntry other = (CommitLogEntry) o;
 
-        if (depth == otherDepth) {
-            return this.file.compareTo(otherFile);
+        if (this.depth == other.depth) {
+            return this.pathSortKey.compareTo(other.pathSortKey);
         }
 
-        if (depth < otherDepth) {
+        if (this.depth < other.depth) {
             return 1;
         }
 
         return -1;
     }
 
-    private static int getDepth(File file) {
+    int getDepth() {
+        return this.depth;
+    }
+
+    String getPathSortKey() {
+        return this.pathSortKey;
+    }
+
+    static int getDepth(File file) {
 
         String path = file.getPath();
         int result = 1;
@@ -149,4 +202,22 @@ class CommitLogEntry implements Comparable {
 
         return result;
     }
+
+    private static String getPathSortKey(File file) {
+
+        String path = file.getPath();
+
+        if (!CASE_INSENSITIVE_PATHS) {
+            return path;
+        }
+
+        // folds each char the same way String.compareToIgnoreCase compares them
+        char[] chars = path.toCharArray();
+
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+        }
+
+        return new String(chars);
+    }
 }
@@ -0,0 +1,427 @@
+package com.anecdote.ideaplugins.commitlog;
+
+import com.intellij.openapi.vcs.changes.Change;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * All the entries of a commit log in a single array.  Once collection is over, the array is sorted once by vcs root,
+ * change type and then entry order, so every (root, change type) partition is a contiguous range of it.  The sort
+ * orders the paths, then applies stable counting passes on the entries' precomputed depth and on their partition.
+ * Entries for a whole root, or for the whole commit, are presented by merging the partitions back into entry order.
+ */
+final class CommitLogEntryIndex {
+
+    private static final Change.Type[] CHANGE_TYPES = Change.Type.values();
+
+    private static final Comparator<CommitLogEntry> PATH_ORDER = new Comparator<CommitLogEntry>() {
+
+        public int compare(CommitLogEntry entry, CommitLogEntry other) {
+            return entry.getPathSortKey().compareTo(other.getPathSortKey());
+        }
+    };
+
+    private CommitLogEntry[] entries = new CommitLogEntry[16];
+    private int size;
+    private boolean indexed = true;
+    private String[] rootNames = new String[0];
+    private int[] partitionStarts = new int[1];
+
+    void add(@NotNull CommitLogEntry entry) {
+
+        if (this.size == this.entries.length) {
+            this.entries = Arrays.copyOf(this.entries, this.size * 2);
+        }
+
+        this.entries[this.size++] = entry;
+        this.indexed = false;
+    }
+
+    /**
+     * @return the number of entries removed
+     */
+    int removeIf(Predicate<CommitLogEntry> filter) {
+
+        ensureIndexed();
+
+        int retained = 0;
+
+        for (int i = 0; i < this.size; i++) {
+
+            if (!filter.test(this.entries[i])) {
+                this.entries[retained++] = this.entries[i];
+            }
+        }
+
+        int removed = this.size - retained;
+
+        if (removed > 0) {
+
+            Arrays.fill(this.entries, retained, this.size, null);
+            this.size = retained;
+            // removal keeps the sort order, so only the partition offsets need rebuilding
+            buildPartitions();
+        }
+
+        return removed;
+    }
+
+    int size() {
+
+        ensureIndexed();
+
+        return this.size;
+    }
+
+    /**
+     * @return the names of the vcs roots having entries, in name order
+     */
+    List<String> getRootNames() {
+
+        ensureIndexed();
+
+        return Collections.unmodifiableList(Arrays.asList(this.rootNames));
+    }
+
+    /**
+     * @param rootName the vcs root to restrict the entries to, or null for all roots
+     * @param type     the change type to restrict the entries to, or null for all change types
+     * @return a view of the matching entries, in entry order
+     */
+    @NotNull
+    Collection<CommitLogEntry> getEntries(@Nullable String rootName, @Nullable Change.Type type) {
+
+        ensureIndexed();
+
+        int firstRoot = 0;
+        int lastRoot = this.rootNames.length - 1;
+
+        if (rootName != null) {
+
+            firstRoot = Arrays.binarySearch(this.rootNames, rootName);
+
+            if (firstRoot < 0) {
+                return Collections.emptyList();
+            }
+
+            lastRoot = firstRoot;
+        }
+
+        if (type != null) {
+
+            if (firstRoot == lastRoot) {
+                int partition = getPartition(firstRoot, type);
+                return getRange(this.partitionStarts[partition], this.partitionStarts[partition + 1]);
+            }
+
+            int[] ranges = new int[(lastRoot - firstRoot + 1) * 2];
+
+            for (int root = firstRoot; root <= lastRoot; root++) {
+
+                int partition = getPartition(root, type);
+
+                ranges[(root - firstRoot) * 2] = this.partitionStarts[partition];
+                ranges[(root - firstRoot) * 2 + 1] = this.partitionStarts[partition + 1];
+            }
+
+            return new MergedEntries(ranges);
+        }
+
+        int[] ranges = new int[(lastRoot - firstRoot + 1) * CHANGE_TYPES.length * 2];
+
+        for (int partition = getPartition(firstRoot, CHANGE_TYPES[0]), i = 0; i < ranges.length; partition++) {
+            ranges[i++] = this.partitionStarts[partition];
+            ranges[i++] = this.partitionStarts[partition + 1];
+        }
+
+        return new MergedEntries(ranges);
+    }
+
+    private static int getPartition(int root, Change.Type type) {
+        return root * CHANGE_TYPES.length + type.ordinal();
+    }
+
+    private Collection<CommitLogEntry> getRange(int start, int end) {
+        return Collections.unmodifiableList(Arrays.asList(this.entries).subList(start, end));
+    }
+
+    private void ensureIndexed() {
+
+        if (this.indexed) {
+            return;
+        }
+
+        // the counting passes are stable, so each pass keeps the order of the one before it within its buckets
+        Arrays.sort(this.entries, 0, this.size, PATH_ORDER);
+
+        int maxDepth = 0;
+        SortedSet<String> roots = new TreeSet<>();
+
+        for (int i = 0; i < this.size; i++) {
+
+            CommitLogEntry entry = this.entries[i];
+
+            maxDepth = Math.max(maxDepth, entry.getDepth());
+            roots.add(entry.getVcsRootName());
+        }
+
+        this.rootNames = roots.toArray(new String[roots.size()]);
+
+        int[] keys = new int[this.size];
+
+        for (int i = 0; i < this.size; i++) {
+            // deepest first
+            keys[i] = maxDepth - this.entries[i].getDepth();
+        }
+
+        countingSort(keys, maxDepth);
+
+        for (int i = 0; i < this.size; i++) {
+
+            CommitLogEntry entry = this.entries[i];
+
+            keys[i] = getPartition(Arrays.binarySearch(this.rootNames, entry.getVcsRootName()), entry.getChangeType());
+        }
+
+        this.partitionStarts = countingSort(keys, this.rootNames.length * CHANGE_TYPES.length);
+
+        // entries are only ordered the same when they are for the same file
+        int retained = 0;
+
+        for (int i = 0; i < this.size; i++) {
+
+            if ((retained == 0)
+                    || (keys[i] != keys[i - 1])
+                    || (this.entries[retained - 1].compareTo(this.entries[i]) != 0)) {
+                this.entries[retained++] = this.entries[i];
+            }
+        }
+
+        if (retained < this.size) {
+
+            Arrays.fill(this.entries, retained, this.size, null);
+            this.size = retained;
+            buildPartitions();
+        }
+
+        this.indexed = true;
+    }
+
+    /**
+     * Stable sort of the entries by the given keys, reordering the keys along with them.
+     *
+     * @return the start of each key's range, followed by the number of entries
+     */
+    private int[] countingSort(int[] keys, int keyCount) {
+
+        int[] starts = new int[keyCount + 1];
+
+        for (int i = 0; i < this.size; i++) {
+            starts[keys[i] + 1]++;
+        }
+
+        for (int key = 0; key < keyCount; key++) {
+            starts[key + 1] += starts[key];
+        }
+
+        int[] positions = Arrays.copyOf(starts, keyCount);
+        CommitLogEntry[] sorted = new CommitLogEntry[this.entries.length];
+        int[] sortedKeys = new int[this.size];
+
+        for (int i = 0; i < this.size; i++) {
+
+            int position = positions[keys[i]]++;
+
+            sorted[position] = this.entries[i];
+            sortedKeys[position] = keys[i];
+        }
+
+        this.entries = sorted;
+        System.arraycopy(sortedKeys, 0, keys, 0, this.size);
+
+        return starts;
+    }
+
+    private void buildPartitions() {
+
+        List<String> roots = new ArrayList<>();
+
+        for (int i = 0; i < this.size; i++) {
+
+            String rootName = this.entries[i].getVcsRootName();
+
+            if (roots.isEmpty() || (!roots.get(roots.size() - 1).equals(rootName))) {
+                roots.add(rootName);
+            }
+        }
+
+        this.rootNames = roots.toArray(new String[roots.size()]);
+        this.partitionStarts = new int[this.rootNames.length * CHANGE_TYPES.length + 1];
+
+        int entry = 0;
+
+        for (int root = 0; root < this.rootNames.length; root++) {
+
+            for (Change.Type type : CHANGE_TYPES) {
+
+                this.partitionStarts[getPartition(root, type)] = entry;
+
+                while ((entry < this.size)
+                        && (this.entries[entry].getChangeType() == type)
+                        && this.entries[entry].getVcsRootName().equals(this.rootNames[root])) {
+                    entry++;
+                }
+            }
+        }
+
+        this.partitionStarts[this.partitionStarts.length - 1] = this.size;
+    }
+
+    /**
+     * Sorts 100k synthetic paths both through the index and with the per comparison depth scan entries used to
+     * make, and checks they come out in the same order.
+     */
+    public static void main(String[] args) {
+
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        Random random = new Random(42);
+        List<CommitLogEntry> synthetic = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+
+            StringBuilder path = new StringBuilder("root");
+            int depth = 1 + random.nextInt(12);
+
+            for (int d = 0; d < depth; d++) {
+                path.append(File.separatorChar).append("dir").append(random.nextInt(20));
+            }
+
+            path.append(File.separatorChar).append("File").append(i).append(".java");
+            synthetic.add(new CommitLogEntry(new File(path.toString()), null, "root" + random.nextInt(3), null, null, null,
+                                             CHANGE_TYPES[random.nextInt(CHANGE_TYPES.length)]));
+        }
+
+        Comparator<CommitLogEntry> scanningOrder = new Comparator<CommitLogEntry>() {
+
+            public int compare(CommitLogEntry entry, CommitLogEntry other) {
+
+                int result = entry.getVcsRootName().compareTo(other.getVcsRootName());
+
+                if (result == 0) {
+                    result = entry.getChangeType().ordinal() - other.getChangeType().ordinal();
+                }
+
+                if (result == 0) {
+                    result = CommitLogEntry.getDepth(other.getFile()) - CommitLogEntry.getDepth(entry.getFile());
+                }
+
+                return result != 0 ? result : entry.getFile().compareTo(other.getFile());
+            }
+        };
+
+        for (int run = 0; run < 5; run++) {
+
+            List<CommitLogEntry> shuffled = new ArrayList<>(synthetic);
+            Collections.shuffle(shuffled, random);
+
+            long start = System.nanoTime();
+            CommitLogEntry[] scanned = shuffled.toArray(new CommitLogEntry[count]);
+            Arrays.sort(scanned, scanningOrder);
+            long scanTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            CommitLogEntryIndex index = new CommitLogEntryIndex();
+
+            for (CommitLogEntry entry : shuffled) {
+                index.add(entry);
+            }
+
+            index.ensureIndexed();
+            long indexTime = System.nanoTime() - start;
+
+            boolean same = Arrays.equals(scanned, Arrays.copyOf(index.entries, index.size));
+            System.out.println("Run " + run + " : " + count + " entries, depth scanning sort " + (scanTime / 1000000)
+                               + "ms, precomputed key sort " + (indexTime / 1000000) + "ms, same order : " + same);
+        }
+    }
+
+    /**
+     * Presents several sorted ranges of the entry array as one collection, merging them in entry order as it is
+     * iterated.
+     */
+    private class MergedEntries extends AbstractCollection<CommitLogEntry> {
+
+        private final int[] ranges;
+        private final int size;
+
+        MergedEntries(int[] ranges) {
+
+            int nonEmpty = 0;
+            int size = 0;
+
+            for (int i = 0; i < ranges.length; i += 2) {
+
+                if (ranges[i] < ranges[i + 1]) {
+                    ranges[nonEmpty++] = ranges[i];
+                    ranges[nonEmpty++] = ranges[i + 1];
+                    size += ranges[i + 1] - ranges[i];
+                }
+            }
+
+            this.ranges = Arrays.copyOf(ranges, nonEmpty);
+            this.size = size;
+        }
+
+        public int size() {
+            return this.size;
+        }
+
+        @NotNull
+        public Iterator<CommitLogEntry> iterator() {
+
+            if (this.ranges.length == 2) {
+                return getRange(this.ranges[0], this.ranges[1]).iterator();
+            }
+
+            final int[] positions = this.ranges.clone();
+            final PriorityQueue<Integer> heads = new PriorityQueue<>(Math.max(1, positions.length / 2), new Comparator<Integer>() {
+
+                public int compare(Integer range, Integer other) {
+                    return entries[positions[range]].compareTo(entries[positions[other]]);
+                }
+            });
+
+            for (int i = 0; i < positions.length; i += 2) {
+                heads.add(i);
+            }
+
+            return new Iterator<CommitLogEntry>() {
+
+                public boolean hasNext() {
+                    return !heads.isEmpty();
+                }
+
+                public CommitLogEntry next() {
+
+                    Integer range = heads.poll();
+
+                    if (range == null) {
+                        throw new NoSuchElementException();
+                    }
+
+                    CommitLogEntry result = entries[positions[range]++];
+
+                    if (positions[range] < positions[range + 1]) {
+                        heads.add(range);
+                    }
+
+                    return result;
+                }
+            };
+        }
+    }
+}
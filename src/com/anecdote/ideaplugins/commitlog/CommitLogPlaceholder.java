@@ -0,0 +1,103 @@
+package com.anecdote.ideaplugins.commitlog;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The placeholders understood by the commit log template.  Placeholder nodes are resolved to one of these when a
+ * template is compiled, so rendering switches on the constant rather than on the placeholder text.
+ */
+enum CommitLogPlaceholder {
+
+    TIME(false),
+    DATE(false),
+    DATE_TIME(false),
+    FILE_COUNT(false),
+    ROOT_COUNT(false),
+    ROOT_LIST(false),
+    COMMIT_MESSAGE(false),
+    ROOT_NAME(false),
+    FILE_NAME(false),
+    FILE_PATH(false),
+    FILE_ACTION(false),
+    PACKAGE_NAME(false),
+    PACKAGE_PATH(false),
+    PATH_FROM_ROOT(false),
+    OLD_REVISION_NUMBER(false),
+    NEW_REVISION_NUMBER(false),
+    CHANGE_SYMBOL(false),
+
+    ROOTS_SECTION(true),
+    ROOT_ENTRY(true),
+    DELETED_FILES(true),
+    MODIFIED_FILES(true),
+    ADDED_FILES(true),
+    ALL_FILES_BY_TYPE(true),
+    ALL_FILES(true),
+    FILE_ENTRY(true);
+
+    private static final Map<String, CommitLogPlaceholder> PLACEHOLDERS_BY_NAME = new HashMap<>();
+
+    static {
+        for (CommitLogPlaceholder placeholder : values()) {
+            PLACEHOLDERS_BY_NAME.put(placeholder.name(), placeholder);
+        }
+    }
+
+    private final boolean block;
+
+    CommitLogPlaceholder(boolean block) {
+        this.block = block;
+    }
+
+    boolean isBlock() {
+        return this.block;
+    }
+
+    boolean isFilesSection() {
+        return (this == DELETED_FILES) || (this == MODIFIED_FILES) || (this == ADDED_FILES) || (this == ALL_FILES_BY_TYPE) || (this == ALL_FILES);
+    }
+
+    private boolean isCommon() {
+        return (this == TIME) || (this == DATE) || (this == DATE_TIME) || (this == FILE_COUNT) || (this == ROOT_COUNT) || (this == ROOT_LIST) || (this == COMMIT_MESSAGE);
+    }
+
+    /**
+     * @param enclosingBlock the innermost block the placeholder is used within, or null at the top level
+     */
+    boolean isAllowedIn(@Nullable CommitLogPlaceholder enclosingBlock) {
+
+        if (enclosingBlock == null) {
+            return isCommon() || (this == ROOTS_SECTION) || isFilesSection();
+        }
+
+        if (enclosingBlock.isFilesSection()) {
+            return (this == FILE_COUNT) || (this == FILE_ENTRY);
+        }
+
+        switch (enclosingBlock) {
+            case ROOTS_SECTION:
+                return isCommon() || (this == ROOT_ENTRY);
+            case ROOT_ENTRY:
+                return isCommon() || (this == ROOT_NAME) || isFilesSection();
+            case FILE_ENTRY:
+                return !isBlock() && !isCommon();
+            default:
+                return false;
+        }
+    }
+
+    @Nullable
+    static CommitLogPlaceholder forName(CharSequence name, boolean block) {
+
+        CommitLogPlaceholder placeholder = PLACEHOLDERS_BY_NAME.get(name.toString());
+
+        return (placeholder != null) && (placeholder.isBlock() == block) ? placeholder : null;
+    }
+
+    String toTemplateText() {
+        return this.block ? '[' + name() + ']' : '$' + name() + '$';
+    }
+}
@@ -4,6 +4,8 @@ import com.intellij.openapi.actionSystem.ActionManager;
 import com.intellij.openapi.actionSystem.AnAction;
 import com.intellij.openapi.actionSystem.Constraints;
 import com.intellij.openapi.actionSystem.DefaultActionGroup;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
 import com.intellij.openapi.components.PersistentStateComponent;
 import com.intellij.openapi.components.ProjectComponent;
 import com.intellij.openapi.components.State;
@@ -35,6 +37,9 @@ public class CommitLogProjectComponent implements ProjectComponent, Configurable
         PersistentStateComponent<CommitLogProjectComponent> {
 
     private final Project project;
+    private final CommitLogCommentPregenerator commentPregenerator;
+    private final CommitLogArchive archive;
+    private final CommitLogRevisionCache revisionCache;
     private CommitLogWindow commitLogWindow;
     private String textualCommitLogTemplate;
     private String textualCommitCommentTemplate;
@@ -48,6 +53,8 @@ public class CommitLogProjectComponent implements ProjectComponent, Configurable
     public static final String COMPONENT_NAME = "CommitLogProjectComponent";
     private CommitLogConfigurationPanel configurationPanel;
     private boolean generateTextualCommitLog = true;
+    static final int DEFAULT_MAX_OPEN_COMMIT_LOGS = 10;
+    private int maxOpenCommitLogs = DEFAULT_MAX_OPEN_COMMIT_LOGS;
     public static final String VERSION = "1.3";
     private static AnAction generateCommentAction = null;
 
@@ -61,6 +68,13 @@ public class CommitLogProjectComponent implements ProjectComponent, Configurable
 
     public CommitLogProjectComponent(@Nullable Project project) {
         this.project = project;
+        this.commentPregenerator = new CommitLogCommentPregenerator(project, this);
+        this.revisionCache = new CommitLogRevisionCache(project);
+        this.archive = project != null ? new CommitLogArchive(getArchiveDirectory(project)) : null;
+    }
+
+    private static File getArchiveDirectory(Project project) {
+        return new File(new File(PathManager.getSystemPath(), "commitlog"), project.getName() + '.' + project.getLocationHash());
     }
 
     public void initComponent() {
@@ -102,18 +116,51 @@ public class CommitLogProjectComponent implements ProjectComponent, Configurable
     }
 
     public void projectOpened() {
+
+        this.revisionCache.startListening();
+        this.commentPregenerator.startListening();
+
+        try {
+            this.archive.open();
+        } catch (IOException e) {
+            log("CommitLogProjectComponent.projectOpened : commit logs will not be archived : " + e.getMessage());
+        }
+
+        if (!this.archive.getCommitLogs().isEmpty()) {
+
+            ApplicationManager.getApplication().invokeLater(new Runnable() {
+
+                public void run() {
+
+                    if (!CommitLogProjectComponent.this.project.isDisposed()) {
+                        getCommitLogWindow().restoreCommitLogs();
+                    }
+                }
+            });
+        }
     }
 
     public void projectClosed() {
+        this.commentPregenerator.stopListening();
+        this.revisionCache.stopListening();
+        this.archive.close();
     }
 
     public Project getProject() {
         return this.project;
     }
 
+    CommitLogCommentPregenerator getCommentPregenerator() {
+        return this.commentPregenerator;
+    }
+
+    CommitLogRevisionCache getRevisionCache() {
+        return this.revisionCache;
+    }
+
     public CommitLogWindow getCommitLogWindow() {
         if (this.commitLogWindow == null) {
-            this.commitLogWindow = new CommitLogWindow(this.project);
+            this.commitLogWindow = new CommitLogWindow(this.project, this.archive);
         }
         return this.commitLogWindow;
     }
@@ -129,6 +176,10 @@ public class CommitLogProjectComponent implements ProjectComponent, Configurable
         return this.textualCommitLogTemplate;
     }
 
+    CompiledCommitLogTemplate getCompiledCommitLogTemplate() throws CommitLogTemplateParser.TextTemplateParserException {
+        return CommitLogTemplateCache.getInstance().getCompiledTemplate(getTextualCommitLogTemplate());
+    }
+
     public void resetCommitLogTemplate() {
         this.textualCommitLogTemplate = DEFAULT_COMMIT_LOG_TEMPLATE;
     }
@@ -233,6 +284,19 @@ public class CommitLogProjectComponent implements ProjectComponent, Configurable
         return this.generateTextualCommitLog;
     }
 
+    public int getMaxOpenCommitLogs() {
+        return this.maxOpenCommitLogs;
+    }
+
+    public void setMaxOpenCommitLogs(int maxOpenCommitLogs) {
+
+        this.maxOpenCommitLogs = maxOpenCommitLogs;
+
+        if (this.commitLogWindow != null) {
+            this.commitLogWindow.evictCommitLogs();
+        }
+    }
+
     public static void log(String s) {
         System.out.println(s);
     }
@@ -244,8 +308,13 @@ public class CommitLogProjectComponent implements ProjectComponent, Configurable
         return this.textualCommitCommentTemplate;
     }
 
+    CompiledCommitLogTemplate getCompiledCommitCommentTemplate() throws CommitLogTemplateParser.TextTemplateParserException {
+        return CommitLogTemplateCache.getInstance().getCompiledTemplate(getTextualCommitCommentTemplate());
+    }
+
     public void setTextualCommitCommentTemplate(String textualCommitCommentTemplate) {
         this.textualCommitCommentTemplate = textualCommitCommentTemplate;
+        this.commentPregenerator.regenerateAll();
     }
 
     public void setFocusCommentTemplateEditor(boolean focusCommentTemplateEditor) {
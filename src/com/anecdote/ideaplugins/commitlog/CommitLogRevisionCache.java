@@ -0,0 +1,171 @@
+package com.anecdote.ideaplugins.commitlog;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vcs.AbstractVcs;
+import com.intellij.openapi.vcs.FilePath;
+import com.intellij.openapi.vcs.ProjectLevelVcsManager;
+import com.intellij.openapi.vcs.VcsListener;
+import com.intellij.openapi.vcs.changes.Change;
+import com.intellij.openapi.vcs.changes.ChangeList;
+import com.intellij.openapi.vcs.changes.ChangeListAdapter;
+import com.intellij.openapi.vcs.changes.ChangeListManager;
+import com.intellij.openapi.vcs.changes.ContentRevision;
+import com.intellij.openapi.vcs.update.UpdatedFilesListener;
+import com.intellij.util.messages.MessageBusConnection;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The revisions a project's changed files were changed from, remembered while the changes last.  A change list is
+ * generated again in the background on every edit, and again by Generate and by the commit, and each time needs the
+ * old revision of every file in it - which does not move until the change is committed, reverted or updated.  A file
+ * is forgotten when its change leaves the change lists, when an update brings in a new revision of it, and when the
+ * vcs configuration changes.
+ */
+final class CommitLogRevisionCache {
+
+    private static final int MAX_CACHED_REVISIONS = 4096;
+
+    private final Project project;
+    private final Map<String, CachedRevision> revisions;
+    private final ChangeListAdapter changeListListener = new ChangeListAdapter() {
+
+        public void changesRemoved(Collection<Change> changes, ChangeList fromList) {
+            invalidate(changes);
+        }
+    };
+    private MessageBusConnection connection;
+    private long hits;
+    private long misses;
+
+    CommitLogRevisionCache(Project project) {
+
+        this.project = project;
+        this.revisions = new LinkedHashMap<String, CachedRevision>(MAX_CACHED_REVISIONS, 0.75f, true) {
+
+            protected boolean removeEldestEntry(Map.Entry<String, CachedRevision> eldest) {
+                return size() > MAX_CACHED_REVISIONS;
+            }
+        };
+    }
+
+    void startListening() {
+
+        ChangeListManager.getInstance(this.project).addChangeListListener(this.changeListListener);
+        this.connection = this.project.getMessageBus().connect();
+        this.connection.subscribe(UpdatedFilesListener.UPDATED_FILES, new UpdatedFilesListener() {
+
+            public void consume(Set<String> paths) {
+
+                for (String path : paths) {
+                    invalidate(path);
+                }
+            }
+        });
+        this.connection.subscribe(ProjectLevelVcsManager.VCS_CONFIGURATION_CHANGED, new VcsListener() {
+
+            public void directoryMappingChanged() {
+                clear();
+            }
+        });
+    }
+
+    void stopListening() {
+
+        ChangeListManager.getInstance(this.project).removeChangeListListener(this.changeListListener);
+
+        if (this.connection != null) {
+            this.connection.disconnect();
+            this.connection = null;
+        }
+
+        clear();
+    }
+
+    /**
+     * @return the old revision of the file's change, from the cache or else from the change itself
+     */
+    @Nullable
+    String getOldRevision(@NotNull FilePath filePath, @NotNull AbstractVcs vcs, @NotNull ContentRevision beforeRevision) {
+
+        synchronized (this) {
+
+            CachedRevision cachedRevision = this.revisions.get(filePath.getPath());
+
+            if ((cachedRevision != null) && (cachedRevision.vcs == vcs)) {
+                this.hits++;
+                return cachedRevision.revision;
+            }
+
+            this.misses++;
+        }
+
+        String revision = beforeRevision.getRevisionNumber().asString();
+
+        if (revision != null) {
+
+            synchronized (this) {
+                this.revisions.put(filePath.getPath(), new CachedRevision(vcs, revision));
+            }
+        }
+
+        return revision;
+    }
+
+    synchronized void invalidate(@NotNull String path) {
+        this.revisions.remove(path);
+    }
+
+    void invalidate(@NotNull FilePath filePath) {
+        invalidate(filePath.getPath());
+    }
+
+    private void invalidate(Collection<Change> changes) {
+
+        for (Change change : changes) {
+
+            ContentRevision beforeRevision = change.getBeforeRevision();
+            ContentRevision afterRevision = change.getAfterRevision();
+
+            if (beforeRevision != null) {
+                invalidate(beforeRevision.getFile());
+            }
+
+            if (afterRevision != null) {
+                invalidate(afterRevision.getFile());
+            }
+        }
+    }
+
+    synchronized void clear() {
+        this.revisions.clear();
+    }
+
+    synchronized double getHitRate() {
+
+        long lookups = this.hits + this.misses;
+
+        return lookups > 0L ? (double) this.hits / lookups : 0.0;
+    }
+
+    public synchronized String toString() {
+        return "Revision cache : " + this.revisions.size() + " revisions, " + this.hits + " hits, " + this.misses
+               + " misses, hit rate " + Math.round(getHitRate() * 100.0) + '%';
+    }
+
+    private static final class CachedRevision {
+
+        private final AbstractVcs vcs;
+        private final String revision;
+
+        private CachedRevision(AbstractVcs vcs, String revision) {
+            this.vcs = vcs;
+            this.revision = revision;
+        }
+    }
+}
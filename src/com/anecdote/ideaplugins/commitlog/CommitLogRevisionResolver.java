@@ -0,0 +1,324 @@
+package com.anecdote.ideaplugins.commitlog;
+
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.vcs.AbstractVcs;
+import com.intellij.openapi.vcs.FilePath;
+import com.intellij.openapi.vcs.VcsException;
+import com.intellij.openapi.vcs.diff.DiffProvider;
+import com.intellij.openapi.vcs.history.VcsHistoryProvider;
+import com.intellij.openapi.vcs.history.VcsHistorySession;
+import com.intellij.openapi.vcs.history.VcsRevisionNumber;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Looks up the revisions the files of a commit are at once the commit is done.  Files are grouped by vcs and root, and
+ * a root whose vcs's {@link CommitLogRevisionStrategy} allows is looked up once for all its files.  Otherwise every
+ * file is looked up on its own, all of them spread over a small shared pool.  No lookup is waited on for longer than
+ * the file timeout, nor the whole commit for longer than the deadline - a file not resolved by then is kept in the
+ * log with its revision unknown.
+ */
+final class CommitLogRevisionResolver {
+
+    private static final int MAX_THREADS = 4;
+    private static final long DEFAULT_FILE_TIMEOUT_MILLIS = 5000L;
+    private static final long DEFAULT_DEADLINE_MILLIS = 30000L;
+    private static final long CANCEL_CHECK_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100L);
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 30L, TimeUnit.SECONDS,
+                                                                              new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        public Thread newThread(@NotNull Runnable runnable) {
+
+            Thread thread = new Thread(runnable, "Commit Log Revisions " + this.threadCount.incrementAndGet());
+            thread.setDaemon(true);
+
+            return thread;
+        }
+    });
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private final long fileTimeoutMillis;
+    private final long deadlineMillis;
+
+    CommitLogRevisionResolver() {
+        this(DEFAULT_FILE_TIMEOUT_MILLIS, DEFAULT_DEADLINE_MILLIS);
+    }
+
+    CommitLogRevisionResolver(long fileTimeoutMillis, long deadlineMillis) {
+        this.fileTimeoutMillis = fileTimeoutMillis;
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * @param indicator the progress of the commit log task, or null when there is none; cancelling it gives up on
+     *                  the remaining files
+     */
+    void updateNewVersions(Collection<CommitLogEntry> commitLogEntries, @Nullable ProgressIndicator indicator) {
+
+        Map<List<Object>, List<CommitLogEntry>> groups = new LinkedHashMap<>();
+
+        for (CommitLogEntry commitLogEntry : commitLogEntries) {
+
+            List<Object> key = Arrays.<Object>asList(commitLogEntry.getVcs(), commitLogEntry.getVcsRootName());
+            List<CommitLogEntry> group = groups.get(key);
+
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(key, group);
+            }
+
+            group.add(commitLogEntry);
+        }
+
+        Map<List<CommitLogEntry>, Lookup> rootLookups = new LinkedHashMap<>();
+        Map<CommitLogEntry, Lookup> fileLookups = new LinkedHashMap<>();
+
+        for (List<CommitLogEntry> group : groups.values()) {
+
+            if (CommitLogRevisionStrategy.forVcs(group.get(0).getVcs()) == CommitLogRevisionStrategy.ROOT_HEAD) {
+                rootLookups.put(group, new RootLookup(group).submit());
+            } else {
+                submitFileLookups(group, fileLookups);
+            }
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.deadlineMillis);
+        int resolved = 0;
+
+        try {
+
+            for (Map.Entry<List<CommitLogEntry>, Lookup> rootLookup : rootLookups.entrySet()) {
+
+                Lookup lookup = rootLookup.getValue();
+                List<CommitLogEntry> group = rootLookup.getKey();
+
+                // a root whose revision is not found, or not found in time, has its files looked up one by one
+                if (lookup.await(deadline, indicator) && (!lookup.failed) && (lookup.version != null)) {
+
+                    for (CommitLogEntry commitLogEntry : group) {
+                        commitLogEntry.setNewVersion(lookup.version);
+                    }
+
+                    resolved += group.size();
+
+                } else {
+                    submitFileLookups(group, fileLookups);
+                }
+            }
+
+            for (Map.Entry<CommitLogEntry, Lookup> fileLookup : fileLookups.entrySet()) {
+
+                CommitLogEntry commitLogEntry = fileLookup.getKey();
+                Lookup lookup = fileLookup.getValue();
+
+                if (lookup.await(deadline, indicator)) {
+
+                    // a file the vcs failed on is left without a new version, as it always has been
+                    if (!lookup.failed) {
+                        commitLogEntry.setNewVersion(lookup.version != null ? lookup.version : commitLogEntry.getOldVersion());
+                    }
+
+                } else {
+
+                    CommitLogProjectComponent.log("CommitLogRevisionResolver : timed out resolving " + commitLogEntry.getFilePath().getPath());
+                    commitLogEntry.setNewVersionUnknown();
+                }
+
+                resolved++;
+
+                if (indicator != null) {
+                    indicator.setFraction((double) resolved / commitLogEntries.size());
+                }
+            }
+
+        } finally {
+
+            for (Lookup lookup : rootLookups.values()) {
+                lookup.cancel();
+            }
+
+            for (Lookup lookup : fileLookups.values()) {
+                lookup.cancel();
+            }
+        }
+    }
+
+    private void submitFileLookups(List<CommitLogEntry> group, Map<CommitLogEntry, Lookup> fileLookups) {
+
+        for (CommitLogEntry commitLogEntry : group) {
+            fileLookups.put(commitLogEntry, new FileLookup(commitLogEntry).submit());
+        }
+    }
+
+    @Nullable
+    static String getCurrentFileVersion(@NotNull AbstractVcs vcs, FilePath filePath) throws VcsException {
+
+        String version = null;
+        DiffProvider diffProvider = vcs.getDiffProvider();
+        VirtualFile file = filePath.getVirtualFile();
+
+        if ((diffProvider != null) && (file != null)) {
+
+            VcsRevisionNumber revision = diffProvider.getCurrentRevision(file);
+
+            if (revision != null) {
+                version = revision.asString();
+            }
+
+        } else {
+
+            VcsHistoryProvider historyProvider = vcs.getVcsHistoryProvider();
+
+            if (historyProvider != null) {
+
+                VcsHistorySession session = historyProvider.createSessionFor(filePath);
+
+                if ((session != null) && (!session.getRevisionList().isEmpty())) {
+
+                    VcsRevisionNumber currentRevisionNumber = session.getCurrentRevisionNumber();
+
+                    if (currentRevisionNumber != null) {
+                        version = currentRevisionNumber.asString();
+                    }
+                }
+            }
+        }
+
+        return version;
+    }
+
+    /**
+     * One question for the vcs, run on the shared pool.  It is given up on once it has been running for longer than
+     * the file timeout, or the whole commit has taken longer than the deadline - time spent queued behind other
+     * lookups does not count against it.
+     */
+    private abstract class Lookup implements Runnable {
+
+        private Future<?> future;
+        private long startNanos;
+        private boolean started;
+        private boolean done;
+        private String version;
+        private boolean failed;
+
+        @Nullable
+        abstract String lookUp() throws VcsException;
+
+        Lookup submit() {
+
+            this.future = EXECUTOR.submit(this);
+
+            return this;
+        }
+
+        public void run() {
+
+            synchronized (this) {
+                this.startNanos = System.nanoTime();
+                this.started = true;
+            }
+
+            String version = null;
+            boolean failed = false;
+
+            try {
+                version = lookUp();
+            } catch (VcsException e) {
+                failed = true;
+                e.printStackTrace();
+            } catch (RuntimeException e) {
+                failed = true;
+                e.printStackTrace();
+            }
+
+            synchronized (this) {
+                this.version = version;
+                this.failed = failed;
+                this.done = true;
+                notifyAll();
+            }
+        }
+
+        /**
+         * @return whether the lookup finished in time
+         */
+        synchronized boolean await(long deadline, @Nullable ProgressIndicator indicator) {
+
+            try {
+
+                while (!this.done) {
+
+                    long timeout = this.started
+                                   ? Math.min(deadline, this.startNanos + TimeUnit.MILLISECONDS.toNanos(CommitLogRevisionResolver.this.fileTimeoutMillis))
+                                   : deadline;
+                    long remaining = timeout - System.nanoTime();
+
+                    if (remaining <= 0L) {
+                        return false;
+                    }
+
+                    if (indicator != null) {
+                        indicator.checkCanceled();
+                    }
+
+                    TimeUnit.NANOSECONDS.timedWait(this, Math.min(remaining, CANCEL_CHECK_INTERVAL_NANOS));
+                }
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+
+            return true;
+        }
+
+        synchronized void cancel() {
+
+            if (!this.done) {
+                this.future.cancel(true);
+            }
+        }
+    }
+
+    private class FileLookup extends Lookup {
+
+        private final CommitLogEntry commitLogEntry;
+
+        private FileLookup(CommitLogEntry commitLogEntry) {
+            this.commitLogEntry = commitLogEntry;
+        }
+
+        @Nullable
+        String lookUp() throws VcsException {
+            return getCurrentFileVersion(this.commitLogEntry.getVcs(), this.commitLogEntry.getFilePath());
+        }
+    }
+
+    private class RootLookup extends Lookup {
+
+        private final List<CommitLogEntry> entries;
+
+        private RootLookup(List<CommitLogEntry> entries) {
+            this.entries = entries;
+        }
+
+        @Nullable
+        String lookUp() throws VcsException {
+
+            AbstractVcs vcs = this.entries.get(0).getVcs();
+
+            return CommitLogRevisionStrategy.forVcs(vcs).getRootRevision(vcs, this.entries);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.anecdote.ideaplugins.commitlog;
+
+import com.intellij.openapi.vcs.AbstractVcs;
+import com.intellij.openapi.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * How the revisions of the files committed under one vcs root are found.  Vcses that version each file have every
+ * file looked up on its own, while those that version the whole tree give every file committed under a root the
+ * same revision, so that root only needs looking up once.
+ */
+enum CommitLogRevisionStrategy {
+
+    PER_FILE,
+    ROOT_HEAD {
+
+        @Nullable
+        String getRootRevision(@NotNull AbstractVcs vcs, @NotNull List<CommitLogEntry> entries) throws VcsException {
+
+            for (CommitLogEntry entry : entries) {
+
+                // a deleted file has nothing to ask the diff provider about
+                if (entry.getFilePath().getVirtualFile() != null) {
+
+                    String revision = CommitLogRevisionResolver.getCurrentFileVersion(vcs, entry.getFilePath());
+
+                    // the root only moved on if the file was actually committed - otherwise each file is checked
+                    if ((revision == null) || revision.equals(entry.getOldVersion())) {
+                        return null;
+                    }
+
+                    return revision;
+                }
+            }
+
+            return null;
+        }
+    };
+
+    private static final Set<String> TREE_VERSIONING_VCS_NAMES = new HashSet<>(Arrays.asList("Git", "hg4idea", "Mercurial"));
+
+    static CommitLogRevisionStrategy forVcs(@Nullable AbstractVcs vcs) {
+        return (vcs != null) && TREE_VERSIONING_VCS_NAMES.contains(vcs.getName()) ? ROOT_HEAD : PER_FILE;
+    }
+
+    /**
+     * @return the revision of every entry, all being under the same root and vcs, or null when each entry has to be
+     *         looked up on its own
+     */
+    @Nullable
+    String getRootRevision(@NotNull AbstractVcs vcs, @NotNull List<CommitLogEntry> entries) throws VcsException {
+        return null;
+    }
+}
@@ -0,0 +1,204 @@
+package com.anecdote.ideaplugins.commitlog;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Inverted index from the words of the archived commit logs - file names and paths, root names, revisions and the
+ * words of the commit messages - to the ids of the logs holding them.  Logs are added in id order, so each word's
+ * postings are kept sorted simply by appending, as variable length deltas from the id before.  A query is split into
+ * words the same way the logs are, and matches the logs holding all of them.
+ */
+final class CommitLogSearchIndex {
+
+    private final Map<String, Postings> postingsByWord = new HashMap<>();
+    private int lastId = -1;
+
+    /**
+     * @param id    the log's id, greater than that of any log added before
+     * @param words the log's words, as {@link #tokenize} splits its text
+     */
+    synchronized void add(int id, @NotNull Collection<String> words) {
+
+        if (id <= this.lastId) {
+            throw new IllegalArgumentException("Commit log " + id + " is already indexed");
+        }
+
+        this.lastId = id;
+
+        for (String word : words) {
+
+            Postings postings = this.postingsByWord.get(word);
+
+            if (postings == null) {
+                postings = new Postings();
+                this.postingsByWord.put(word, postings);
+            }
+
+            postings.add(id);
+        }
+    }
+
+    /**
+     * @return the ids of the logs holding every word of the query, in ascending order
+     */
+    @NotNull
+    synchronized int[] search(@NotNull CharSequence query) {
+
+        Set<String> words = tokenize(query);
+
+        if (words.isEmpty()) {
+            return new int[0];
+        }
+
+        List<Postings> postingsList = new ArrayList<>(words.size());
+
+        for (String word : words) {
+
+            Postings postings = this.postingsByWord.get(word);
+
+            if (postings == null) {
+                return new int[0];
+            }
+
+            postingsList.add(postings);
+        }
+
+        // intersecting from the rarest word keeps the candidates few
+        Collections.sort(postingsList, new Comparator<Postings>() {
+
+            public int compare(Postings postings, Postings other) {
+                return postings.count - other.count;
+            }
+        });
+
+        int[] result = postingsList.get(0).decode();
+        int resultSize = result.length;
+
+        for (int i = 1; (i < postingsList.size()) && (resultSize > 0); i++) {
+            resultSize = postingsList.get(i).retainAll(result, resultSize);
+        }
+
+        return Arrays.copyOf(result, resultSize);
+    }
+
+    /**
+     * Splits text into lower case runs of letters and digits, so a path, a file name and a revision are each found
+     * by any of their parts.
+     */
+    static Set<String> tokenize(CharSequence text) {
+
+        Set<String> result = new LinkedHashSet<>();
+        int start = -1;
+
+        for (int i = 0; i <= text.length(); i++) {
+
+            boolean wordChar = (i < text.length()) && Character.isLetterOrDigit(text.charAt(i));
+
+            if (wordChar && (start < 0)) {
+                start = i;
+            } else if ((!wordChar) && (start >= 0)) {
+                result.add(text.subSequence(start, i).toString().toLowerCase(Locale.ENGLISH));
+                start = -1;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * One word's log ids, ascending, each stored as a base 128 varint of its difference from the id before.
+     */
+    private static final class Postings {
+
+        private byte[] data = new byte[4];
+        private int size;
+        private int count;
+        private int lastId;
+
+        void add(int id) {
+
+            int delta = id - this.lastId;
+
+            if (this.size + 5 > this.data.length) {
+                this.data = Arrays.copyOf(this.data, Math.max(this.data.length * 2, this.size + 5));
+            }
+
+            while ((delta & ~0x7F) != 0) {
+                this.data[this.size++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+
+            this.data[this.size++] = (byte) delta;
+            this.lastId = id;
+            this.count++;
+        }
+
+        int[] decode() {
+
+            int[] result = new int[this.count];
+            int position = 0;
+            int id = 0;
+
+            for (int i = 0; i < this.count; i++) {
+
+                int delta = 0;
+                int shift = 0;
+                byte b;
+
+                do {
+                    b = this.data[position++];
+                    delta |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+
+                id += delta;
+                result[i] = id;
+            }
+
+            return result;
+        }
+
+        /**
+         * Keeps only the candidates that are also in these postings, walking both in order.
+         *
+         * @return the number of candidates kept, compacted to the front of the array
+         */
+        int retainAll(int[] candidates, int candidateCount) {
+
+            int position = 0;
+            int id = 0;
+            int decoded = 0;
+            int kept = 0;
+            int candidate = 0;
+
+            while ((candidate < candidateCount) && (decoded < this.count)) {
+
+                int delta = 0;
+                int shift = 0;
+                byte b;
+
+                do {
+                    b = this.data[position++];
+                    delta |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+
+                id += delta;
+                decoded++;
+
+                while ((candidate < candidateCount) && (candidates[candidate] < id)) {
+                    candidate++;
+                }
+
+                if ((candidate < candidateCount) && (candidates[candidate] == id)) {
+                    candidates[kept++] = id;
+                    candidate++;
+                }
+            }
+
+            return kept;
+        }
+    }
+}
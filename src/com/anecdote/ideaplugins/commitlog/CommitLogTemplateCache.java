@@ -0,0 +1,94 @@
+package com.anecdote.ideaplugins.commitlog;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Application wide cache of compiled templates, keyed by the hash of the template text.  Every commit and comment
+ * generation renders through here, so an unchanged template is only ever parsed once - one that does not parse
+ * included, whose error is cached in its place and thrown again.
+ */
+final class CommitLogTemplateCache {
+
+    private static final int MAX_CACHED_TEMPLATES = 32;
+
+    private static final CommitLogTemplateCache INSTANCE = new CommitLogTemplateCache(MAX_CACHED_TEMPLATES);
+
+    private final Map<Integer, CachedTemplate> compiledTemplates;
+
+    private CommitLogTemplateCache(final int maxCachedTemplates) {
+
+        this.compiledTemplates = new LinkedHashMap<Integer, CachedTemplate>(maxCachedTemplates, 0.75f, true) {
+
+            protected boolean removeEldestEntry(Map.Entry<Integer, CachedTemplate> eldest) {
+                return size() > maxCachedTemplates;
+            }
+        };
+    }
+
+    static CommitLogTemplateCache getInstance() {
+        return INSTANCE;
+    }
+
+    CompiledCommitLogTemplate getCompiledTemplate(String templateText) throws CommitLogTemplateParser.TextTemplateParserException {
+
+        Integer key = templateText.hashCode();
+        CachedTemplate result;
+
+        synchronized (this.compiledTemplates) {
+            result = this.compiledTemplates.get(key);
+        }
+
+        // the hash is only a key - a colliding template simply replaces the cached one
+        if ((result == null) || (!result.templateText.equals(templateText))) {
+
+            try {
+                result = new CachedTemplate(templateText, CompiledCommitLogTemplate.compile(templateText), null);
+            } catch (CommitLogTemplateParser.TextTemplateParserException e) {
+                result = new CachedTemplate(templateText, null, e);
+            }
+
+            synchronized (this.compiledTemplates) {
+                this.compiledTemplates.put(key, result);
+            }
+        }
+
+        if (result.error != null) {
+            throw result.error;
+        }
+
+        return result.compiledTemplate;
+    }
+
+    void putCompiledTemplate(CompiledCommitLogTemplate compiledTemplate) {
+
+        synchronized (this.compiledTemplates) {
+            this.compiledTemplates.put(compiledTemplate.getTemplateText().hashCode(),
+                                       new CachedTemplate(compiledTemplate.getTemplateText(), compiledTemplate, null));
+        }
+    }
+
+    void clear() {
+
+        synchronized (this.compiledTemplates) {
+            this.compiledTemplates.clear();
+        }
+    }
+
+    /**
+     * A template's text, and either what it compiled to or why it did not.
+     */
+    private static final class CachedTemplate {
+
+        private final String templateText;
+        private final CompiledCommitLogTemplate compiledTemplate;
+        private final CommitLogTemplateParser.TextTemplateParserException error;
+
+        private CachedTemplate(String templateText, CompiledCommitLogTemplate compiledTemplate,
+                               CommitLogTemplateParser.TextTemplateParserException error) {
+            this.templateText = templateText;
+            this.compiledTemplate = compiledTemplate;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.anecdote.ideaplugins.commitlog;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * Compact, array backed result of parsing a text template.  Each node is stored as a type, a start offset and a
+ * length into the template text, so node text is never copied out of the template.
+ */
+final class CommitLogTemplateNodeTable {
+
+    private static final CommitLogTemplateParser.TextTemplateNodeType[] NODE_TYPES = CommitLogTemplateParser.TextTemplateNodeType.values();
+
+    private final String templateText;
+    private final byte[] types;
+    private final int[] starts;
+    private final int[] lengths;
+    private final int[] matchingNodes;
+    private final int size;
+
+    private CommitLogTemplateNodeTable(String templateText, byte[] types, int[] starts, int[] lengths, int[] matchingNodes, int size) {
+        this.templateText = templateText;
+        this.types = types;
+        this.starts = starts;
+        this.lengths = lengths;
+        this.matchingNodes = matchingNodes;
+        this.size = size;
+    }
+
+    String getTemplateText() {
+        return this.templateText;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    CommitLogTemplateParser.TextTemplateNodeType getType(int node) {
+        return NODE_TYPES[this.types[node]];
+    }
+
+    int getLocation(int node) {
+        return this.starts[node];
+    }
+
+    int getLength(int node) {
+        return this.lengths[node];
+    }
+
+    /**
+     * @return for a block placeholder, the index of the placeholder closing or opening it; otherwise -1
+     */
+    int getMatchingNode(int node) {
+        return this.matchingNodes[node];
+    }
+
+    /**
+     * @return a view onto the template text of the node - no characters are copied
+     */
+    CharSequence getText(int node) {
+
+        int start = this.starts[node];
+
+        return CharBuffer.wrap(this.templateText, start, start + this.lengths[node]);
+    }
+
+    void appendText(int node, Appendable out) throws IOException {
+
+        int start = this.starts[node];
+        out.append(this.templateText, start, start + this.lengths[node]);
+    }
+
+    static class Builder {
+
+        private final String templateText;
+        private byte[] types;
+        private int[] starts;
+        private int[] lengths;
+        private int[] matchingNodes;
+        private int size;
+
+        Builder(String templateText) {
+
+            this.templateText = templateText;
+
+            // a rough guess - most templates have a node for every dozen or so characters
+            int capacity = Math.max(16, templateText.length() / 12);
+
+            this.types = new byte[capacity];
+            this.starts = new int[capacity];
+            this.lengths = new int[capacity];
+            this.matchingNodes = new int[capacity];
+        }
+
+        /**
+         * @return the index of the added node, or -1 if the range is empty and no node was added
+         */
+        int add(CommitLogTemplateParser.TextTemplateNodeType type, int start, int end) {
+
+            if (end <= start) {
+                return -1;
+            }
+
+            ensureCapacity(this.size + 1);
+
+            this.types[this.size] = (byte) type.ordinal();
+            this.starts[this.size] = start;
+            this.lengths[this.size] = end - start;
+            this.matchingNodes[this.size] = -1;
+
+            return this.size++;
+        }
+
+        /**
+         * Copies nodes <code>from</code> up to <code>to</code> of another version of the template, moving each by
+         * <code>shift</code> characters.  Their blocks are left unmatched.
+         */
+        void addAll(CommitLogTemplateNodeTable nodes, int from, int to, int shift) {
+
+            int count = to - from;
+
+            ensureCapacity(this.size + count);
+
+            System.arraycopy(nodes.types, from, this.types, this.size, count);
+            System.arraycopy(nodes.lengths, from, this.lengths, this.size, count);
+            Arrays.fill(this.matchingNodes, this.size, this.size + count, -1);
+
+            for (int i = 0; i < count; i++) {
+                this.starts[this.size + i] = nodes.starts[from + i] + shift;
+            }
+
+            this.size += count;
+        }
+
+        private void ensureCapacity(int capacity) {
+
+            if (capacity > this.types.length) {
+
+                capacity = Math.max(capacity, this.types.length * 2);
+
+                this.types = Arrays.copyOf(this.types, capacity);
+                this.starts = Arrays.copyOf(this.starts, capacity);
+                this.lengths = Arrays.copyOf(this.lengths, capacity);
+                this.matchingNodes = Arrays.copyOf(this.matchingNodes, capacity);
+            }
+        }
+
+        int size() {
+            return this.size;
+        }
+
+        CommitLogTemplateParser.TextTemplateNodeType getType(int node) {
+            return NODE_TYPES[this.types[node]];
+        }
+
+        int getLocation(int node) {
+            return this.starts[node];
+        }
+
+        int getLength(int node) {
+            return this.lengths[node];
+        }
+
+        String getText(int node) {
+
+            int start = this.starts[node];
+
+            return this.templateText.substring(start, start + this.lengths[node]);
+        }
+
+        boolean isClosingBlock(int node) {
+            return this.templateText.charAt(this.starts[node]) == '/';
+        }
+
+        /**
+         * @return true if the text of <code>closingNode</code> is that of <code>openingNode</code> prefixed by '/'
+         */
+        boolean closesBlock(int closingNode, int openingNode) {
+
+            int length = this.lengths[openingNode];
+
+            return (this.lengths[closingNode] == length + 1)
+                    && this.templateText.regionMatches(this.starts[closingNode] + 1, this.templateText, this.starts[openingNode], length);
+        }
+
+        boolean textEquals(int node, int otherNode) {
+
+            int length = this.lengths[node];
+
+            return (this.lengths[otherNode] == length)
+                    && this.templateText.regionMatches(this.starts[node], this.templateText, this.starts[otherNode], length);
+        }
+
+        void setMatchingNodes(int openingNode, int closingNode) {
+            this.matchingNodes[openingNode] = closingNode;
+            this.matchingNodes[closingNode] = openingNode;
+        }
+
+        CommitLogTemplateNodeTable build() {
+
+            return new CommitLogTemplateNodeTable(this.templateText,
+                    Arrays.copyOf(this.types, this.size),
+                    Arrays.copyOf(this.starts, this.size),
+                    Arrays.copyOf(this.lengths, this.size),
+                    Arrays.copyOf(this.matchingNodes, this.size),
+                    this.size);
+        }
+    }
+}
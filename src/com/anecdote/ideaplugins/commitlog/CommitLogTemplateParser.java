@@ -1,9 +1,7 @@
 package com.anecdote.ideaplugins.commitlog;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.StringTokenizer;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 public class CommitLogTemplateParser {
 
@@ -11,111 +9,285 @@ public class CommitLogTemplateParser {
     public static final String BLOCK_PLACEHOLDER_OPEN_SYMBOL = "[";
     public static final String BLOCK_PLACEHOLDER_CLOSE_SYMBOL = "]";
     public static final String ESCAPE_SYMBOL = "\\";
+    public static final String BLOCK_CLOSE_PREFIX = "/";
 
-    List<TextTemplateNode> parseTextTemplate(String textTemplate) throws CommitLogTemplateParser.TextTemplateParserException {
+    // historically [ALL_FILES_BY_TYPE] was closed by repeating it, rather than with [/ALL_FILES_BY_TYPE]
+    private static final String SELF_CLOSING_BLOCK = "ALL_FILES_BY_TYPE";
+
+    CommitLogTemplateNodeTable parseTextTemplate(String textTemplate) throws CommitLogTemplateParser.TextTemplateParserException {
+
+        CommitLogTemplateNodeTable.Builder result = new CommitLogTemplateNodeTable.Builder(textTemplate);
 
         try {
+            lex(textTemplate, 0, result, null, 0, 0);
+        } catch (TextTemplateParserException e) {
+            // a block mismatch before the lexing error is the one reported
+            matchBlocks(result, false);
+            throw e;
+        }
 
-            StringTokenizer tokens = new StringTokenizer(textTemplate, "\\$[]", true);
+        matchBlocks(result, true);
 
-            List result = new LinkedList();
-            boolean inPlaceholder = false;
-            boolean inBlockPlaceholder = false;
-            int nextLocation = 0;
+        return result.build();
+    }
 
-            while (tokens.hasMoreTokens()) {
+    /**
+     * Reparses a template after an edit, reusing the nodes of its previous, successfully parsed, version.  Lexing
+     * restarts just after the last placeholder closed before the edit, and stops at the first placeholder closed after
+     * it that closed a placeholder in the previous version too - from there on the text, and so its nodes, are
+     * unchanged but for being shifted by the edit.  Only block matching still looks at every node, and then only at
+     * block placeholders.
+     *
+     * @param offset    where the edit starts
+     * @param oldLength how much text the edit replaced
+     * @param newLength how much text the edit inserted
+     */
+    CommitLogTemplateNodeTable reparseTextTemplate(CommitLogTemplateNodeTable previous, String textTemplate, int offset,
+                                                   int oldLength, int newLength) throws TextTemplateParserException {
+
+        CommitLogTemplateNodeTable.Builder result = new CommitLogTemplateNodeTable.Builder(textTemplate);
+        int low = 0;
+        int high = previous.size();
+
+        // the first node starting at or after the edit
+        while (low < high) {
+
+            int middle = (low + high) >>> 1;
+
+            if (previous.getLocation(middle) < offset) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
 
-                int tokenLocation = nextLocation;
-                String token = tokens.nextToken();
-                nextLocation += token.length();
+        int restartNode = 0;
+        int restart = 0;
 
-                if ("$".equals(token)) {
+        for (int node = low - 1; node >= 0; node--) {
 
-                    if (inBlockPlaceholder) {
-                        throwParserException("Block placeholders may not contain '$'", tokenLocation);
-                    }
+            if (previous.getType(node) != TextTemplateNodeType.TEXT_NODE) {
 
-                    inPlaceholder = !inPlaceholder;
+                int close = previous.getLocation(node) + previous.getLength(node);
 
-                } else if ("[".equals(token)) {
+                if (close < offset) {
+                    restartNode = node + 1;
+                    restart = close + 1;
+                    break;
+                }
+            }
+        }
 
-                    if (inPlaceholder) {
-                        throwParserException("Placeholders may not contain '['", tokenLocation);
-                    } else {
-                        inPlaceholder = true;
-                        inBlockPlaceholder = true;
-                    }
+        result.addAll(previous, 0, restartNode, 0);
 
-                } else if ("]".equals(token)) {
+        try {
 
-                    if (inPlaceholder) {
-                        inPlaceholder = false;
-                        inBlockPlaceholder = false;
-                    } else {
-                        throwParserException("Template may not contain unescaped ']' - use '\\]' instead", tokenLocation);
-                    }
+            int resumeNode = lex(textTemplate, restart, result, previous, offset + newLength, newLength - oldLength);
 
-                } else {
+            if (resumeNode != -1) {
+                result.addAll(previous, resumeNode, previous.size(), newLength - oldLength);
+            }
 
-                    if ("\\".equals(token)) {
+        } catch (TextTemplateParserException e) {
+            matchBlocks(result, false);
+            throw e;
+        }
 
-                        if (tokens.hasMoreTokens()) {
-                            tokenLocation = nextLocation;
-                            token = tokens.nextToken();
-                            nextLocation += token.length();
+        matchBlocks(result, true);
 
-                            if ((!"$".equals(token)) && (!"\\".equals(token)) && (!"]".equals(token)) && (!"[".equals(token))) {
-                                throwParserException("'\\' may only precede '$', '[', ']' or '\\'", tokenLocation);
-                            }
+        return result.build();
+    }
 
-                        } else {
-                            throwParserException("'\\' must be followed by '$', '[', ']' or '\\'", tokenLocation);
-                        }
-                    }
+    /**
+     * Splits the template, from <code>start</code>, where the lexer is outside any placeholder, into nodes.  Given the
+     * previous version of an edited template, lexing stops at the first placeholder closed at or after
+     * <code>unchangedFrom</code> that also closed a placeholder <code>shift</code> characters away in that version.
+     *
+     * @return the index of the first node of the previous version that can be reused from there, or -1 if the
+     *         template was lexed to its end
+     */
+    private static int lex(String textTemplate, int start, CommitLogTemplateNodeTable.Builder result,
+                           CommitLogTemplateNodeTable previous, int unchangedFrom, int shift) throws TextTemplateParserException {
 
-                    if (inPlaceholder) {
+        int length = textTemplate.length();
+        TextTemplateNodeType placeholderType = null;
+        int nodeStart = start;
+        int previousNode = 0;
 
-                        if (inBlockPlaceholder) {
+        for (int i = start; i < length; i++) {
 
-                            if (tokens.hasMoreTokens()) {
+            char c = textTemplate.charAt(i);
 
-                                if (token.contains("\n")) {
-                                    throwParserException("Block Placeholders may not contain linefeeds", tokenLocation + token.indexOf('\n') - 1);
-                                }
+            if (placeholderType == null) {
 
-                                result.add(createTextTemplateNode(TextTemplateNodeType.BLOCK_PLACEHOLDER_NODE, token, tokenLocation));
+                switch (c) {
+                    case '\\':
+                        result.add(TextTemplateNodeType.TEXT_NODE, nodeStart, i);
 
-                            } else {
-                                throwParserException("Opening [ detected with no closing ]", tokenLocation + token.length() - 1);
-                            }
+                        if (i + 1 == length) {
+                            throwParserException("'\\' must be followed by '$', '[', ']' or '\\'", i);
+                        }
 
-                        } else if (tokens.hasMoreTokens()) {
+                        if (!isSymbol(textTemplate.charAt(i + 1))) {
+                            throwParserException("'\\' may only precede '$', '[', ']' or '\\'", i + 1);
+                        }
 
-                            if (token.contains("\n")) {
-                                throwParserException("Value Placeholders may not contain linefeeds", tokenLocation + token.indexOf('\n') - 1);
-                            }
+                        // the escaped symbol starts the next text node
+                        i++;
+                        nodeStart = i;
+                        break;
+                    case '$':
+                        result.add(TextTemplateNodeType.TEXT_NODE, nodeStart, i);
+                        placeholderType = TextTemplateNodeType.VALUE_PLACEHOLDER_NODE;
+                        nodeStart = i + 1;
+                        break;
+                    case '[':
+                        result.add(TextTemplateNodeType.TEXT_NODE, nodeStart, i);
+                        placeholderType = TextTemplateNodeType.BLOCK_PLACEHOLDER_NODE;
+                        nodeStart = i + 1;
+                        break;
+                    case ']':
+                        throwParserException("Template may not contain unescaped ']' - use '\\]' instead", i);
+                        break;
+                }
 
-                            result.add(createTextTemplateNode(TextTemplateNodeType.VALUE_PLACEHOLDER_NODE, token, tokenLocation));
+                continue;
+            }
 
-                        } else {
-                            throwParserException("Opening $ detected with no closing $", tokenLocation + token.length() - 1);
-                        }
+            if (placeholderType == TextTemplateNodeType.VALUE_PLACEHOLDER_NODE) {
+
+                switch (c) {
+                    case '$':
+                        // as ever, an empty "$$" (or "[]") is ignored - it adds no node, so is never looked up
+                        result.add(placeholderType, nodeStart, i);
+                        placeholderType = null;
+                        nodeStart = i + 1;
+                        break;
+                    case '[':
+                        throwParserException("Placeholders may not contain '['", i);
+                        break;
+                    case ']':
+                        throwParserException("Placeholders may not contain ']'", i);
+                        break;
+                    case '\\':
+                        throwParserException("Placeholders may not contain '\\'", i);
+                        break;
+                    case '\n':
+                        throwParserException("Value Placeholders may not contain linefeeds", i - 1);
+                        break;
+                }
 
-                    } else {
+            } else {
+
+                switch (c) {
+                    case ']':
+                        result.add(placeholderType, nodeStart, i);
+                        placeholderType = null;
+                        nodeStart = i + 1;
+                        break;
+                    case '$':
+                        throwParserException("Block placeholders may not contain '$'", i);
+                        break;
+                    case '[':
+                        throwParserException("Placeholders may not contain '['", i);
+                        break;
+                    case '\\':
+                        throwParserException("Placeholders may not contain '\\'", i);
+                        break;
+                    case '\n':
+                        throwParserException("Block Placeholders may not contain linefeeds", i - 1);
+                        break;
+                }
+            }
 
-                        result.add(createTextTemplateNode(TextTemplateNodeType.TEXT_NODE, token, tokenLocation));
-                    }
+            if ((placeholderType == null) && (previous != null) && (i >= unchangedFrom)) {
+
+                // the previous version's placeholders close in ascending order, so the search carries on from the last
+                while ((previousNode < previous.size())
+                        && ((previous.getType(previousNode) == TextTemplateNodeType.TEXT_NODE)
+                            || (previous.getLocation(previousNode) + previous.getLength(previousNode) < i - shift))) {
+                    previousNode++;
+                }
+
+                if ((previousNode < previous.size()) && (previous.getLocation(previousNode) + previous.getLength(previousNode) == i - shift)) {
+                    return previousNode + 1;
                 }
             }
+        }
 
-            return result;
+        if (placeholderType == TextTemplateNodeType.VALUE_PLACEHOLDER_NODE) {
+            throwParserException("Opening $ detected with no closing $", length - 1);
+        } else if (placeholderType == TextTemplateNodeType.BLOCK_PLACEHOLDER_NODE) {
+            throwParserException("Opening [ detected with no closing ]", length - 1);
+        }
 
-        } catch (TextTemplateParserException e) {
-            throw new TextTemplateParserException(e.getMessage(), e, e.getLocation());
+        result.add(TextTemplateNodeType.TEXT_NODE, nodeStart, length);
+
+        return -1;
+    }
+
+    /**
+     * Pairs up the block placeholders lexed so far, in the order they close.
+     *
+     * @param complete whether the whole template was lexed, so that any block left open is an error
+     */
+    private static void matchBlocks(CommitLogTemplateNodeTable.Builder result, boolean complete) throws TextTemplateParserException {
+
+        Deque<Integer> openBlocks = new ArrayDeque<>();
+
+        for (int node = 0; node < result.size(); node++) {
+
+            if (result.getType(node) == TextTemplateNodeType.BLOCK_PLACEHOLDER_NODE) {
+                matchBlock(result, openBlocks, node, result.getLocation(node) + result.getLength(node));
+            }
+        }
+
+        if (complete && (!openBlocks.isEmpty())) {
+
+            int openBlock = openBlocks.pop();
+            throwParserException("Block placeholder [" + result.getText(openBlock) + "] has no closing ["
+                    + BLOCK_CLOSE_PREFIX + result.getText(openBlock) + ']', result.getLocation(openBlock) - 1);
         }
     }
 
-    private static void throwParserException(String message, int tokenLocation) throws CommitLogTemplateParser.TextTemplateParserException {
+    /**
+     * Pairs a block placeholder up with the innermost open block, so that renderers can jump straight to the end
+     * of a block.  Blocks must be closed in the reverse order to which they were opened.
+     */
+    private static void matchBlock(CommitLogTemplateNodeTable.Builder result, Deque<Integer> openBlocks, int node, int location)
+            throws TextTemplateParserException {
+
+        Integer openBlock = openBlocks.peek();
+
+        if (result.isClosingBlock(node)) {
+
+            if (openBlock == null) {
+                throwParserException("Closing block placeholder [" + result.getText(node) + "] has no opening block", location);
+            }
+
+            if (!result.closesBlock(node, openBlock)) {
+                throwParserException("Block placeholder [" + result.getText(node) + "] does not close ["
+                        + result.getText(openBlock) + "] - blocks may not overlap", location);
+            }
+
+            openBlocks.pop();
+            result.setMatchingNodes(openBlock, node);
+
+        } else if ((openBlock != null) && result.textEquals(node, openBlock) && SELF_CLOSING_BLOCK.equals(result.getText(node))) {
+
+            openBlocks.pop();
+            result.setMatchingNodes(openBlock, node);
+
+        } else {
+            openBlocks.push(node);
+        }
+    }
+
+    private static boolean isSymbol(char c) {
+        return (c == '$') || (c == '[') || (c == ']') || (c == '\\');
+    }
+
+    static void throwParserException(String message, int tokenLocation) throws CommitLogTemplateParser.TextTemplateParserException {
         throw new TextTemplateParserException("Illegal text template - error at index " + tokenLocation + " : " + message, tokenLocation);
     }
 
@@ -140,13 +312,11 @@ public class CommitLogTemplateParser {
 
         try {
 
-            Iterator result = parseTextTemplate(text).iterator();
+            CommitLogTemplateNodeTable result = parseTextTemplate(text);
             System.out.println("Results : ");
 
-            while (result.hasNext()) {
-
-                TextTemplateNode node = (TextTemplateNode) result.next();
-                System.out.println("Node of type " + node.getType() + " with text : " + node.getText() + "#END#");
+            for (int i = 0; i < result.size(); i++) {
+                System.out.println("Node of type " + result.getType(i) + " with text : " + result.getText(i) + "#END#");
             }
 
         } catch (TextTemplateParserException e) {
@@ -154,44 +324,22 @@ public class CommitLogTemplateParser {
         }
     }
 
-    private TextTemplateNode createTextTemplateNode(final TextTemplateNodeType type, final String text, final int location) {
-
-        return new TextTemplateNode() {
-
-            public CommitLogTemplateParser.TextTemplateNodeType getType() {
-                return type;
-            }
-
-            public String getText() {
-                return text;
-            }
-
-            public String toString() {
-                return text;
-            }
-
-            public int getLocation() {
-                return location;
-            }
-        };
-    }
-
     static class TextTemplateParserException extends Exception {
 
         private final int _location;
 
         public TextTemplateParserException(Throwable cause, int location) {
-            super();
+            super(cause);
             this._location = location;
         }
 
         TextTemplateParserException(String message, int location) {
-            super();
+            super(message);
             this._location = location;
         }
 
         TextTemplateParserException(String message, Throwable cause, int location) {
-            super(cause);
+            super(message, cause);
             this._location = location;
         }
 
@@ -200,15 +348,6 @@ public class CommitLogTemplateParser {
         }
     }
 
-    interface TextTemplateNode {
-
-        CommitLogTemplateParser.TextTemplateNodeType getType();
-
-        String getText();
-
-        int getLocation();
-    }
-
     enum TextTemplateNodeType {
         TEXT_NODE, VALUE_PLACEHOLDER_NODE, BLOCK_PLACEHOLDER_NODE;
     }
@@ -5,9 +5,14 @@ import com.intellij.openapi.actionSystem.ActionGroup;
 import com.intellij.openapi.actionSystem.AnAction;
 import com.intellij.openapi.actionSystem.AnActionEvent;
 import com.intellij.openapi.actionSystem.DefaultActionGroup;
+import com.intellij.openapi.actionSystem.Presentation;
+import com.intellij.openapi.actionSystem.ex.CustomComponentAction;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.EditorSettings;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.util.IconLoader;
@@ -15,17 +20,32 @@ import com.intellij.openapi.wm.ToolWindow;
 import com.intellij.openapi.wm.ToolWindowAnchor;
 import com.intellij.openapi.wm.ToolWindowManager;
 import com.intellij.ui.content.*;
+import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 class CommitLogWindow {
 
     private Project project;
 
-    private Set<Editor> commitLogs = new HashSet<>();
+    // by the placeholder component each tab shows, oldest first, so the first are the ones evicted once there are
+    // more than the project allows
+    private Map<JComponent, CommitLogTab> commitLogs = new LinkedHashMap<>();
+
+    // the one viewer, moved to whichever tab is selected and showing that tab's text
+    private Editor viewer;
+
+    private CommitLogTab shownCommitLog;
+
+    private final CommitLogArchive archive;
 
     private boolean isInitialized;
 
@@ -43,9 +63,10 @@ class CommitLogWindow {
 
     private static final Icon COMMIT_LOGS_SMALL_ICON = IconLoader.getIcon("/resources/commitlogsmall.png");
 
-    public CommitLogWindow(Project project) {
+    public CommitLogWindow(Project project, CommitLogArchive archive) {
 
         this.project = project;
+        this.archive = archive;
 
         Disposer.register(project, new Disposable() {
 
@@ -54,11 +75,13 @@ class CommitLogWindow {
 
                 try {
 
-                    for (Editor commitLog : CommitLogWindow.this.commitLogs) {
-                        EditorFactory.getInstance().releaseEditor(commitLog);
+                    if (CommitLogWindow.this.viewer != null) {
+                        EditorFactory.getInstance().releaseEditor(CommitLogWindow.this.viewer);
+                        CommitLogWindow.this.viewer = null;
                     }
 
                     CommitLogWindow.this.commitLogs.clear();
+                    CommitLogWindow.this.shownCommitLog = null;
                     CommitLogWindow.LOG.assertTrue(!CommitLogWindow.this.isDisposed);
 
                     if (!CommitLogWindow.this.isInitialized) {
@@ -95,23 +118,32 @@ class CommitLogWindow {
 
                 public void contentRemoved(ContentManagerEvent event) {
 
-                    JComponent component = event.getContent().getComponent();
-                    JComponent removedComponent = (component instanceof CommitLogWindowComponent) ? ((CommitLogWindowComponent) component).getComponent() : component;
+                    CommitLogTab commitLog = CommitLogWindow.this.commitLogs.remove(getTabComponent(event.getContent()));
+
+                    if ((commitLog != null) && (commitLog == CommitLogWindow.this.shownCommitLog)) {
+                        CommitLogWindow.this.shownCommitLog = null;
+                    }
+                }
 
-                    for (Iterator iterator = CommitLogWindow.this.commitLogs.iterator(); iterator.hasNext(); ) {
+                public void selectionChanged(ContentManagerEvent event) {
 
-                        Editor editor = (Editor) iterator.next();
+                    Content selectedContent = CommitLogWindow.this.contentManager.getSelectedContent();
 
-                        if (removedComponent == editor.getComponent()) {
-                            EditorFactory.getInstance().releaseEditor(editor);
-                            iterator.remove();
-                        }
+                    if (selectedContent != null) {
+                        showCommitLog(CommitLogWindow.this.commitLogs.get(getTabComponent(selectedContent)));
                     }
                 }
             });
         }
     }
 
+    private static JComponent getTabComponent(Content content) {
+
+        JComponent component = content.getComponent();
+
+        return (component instanceof CommitLogWindowComponent) ? ((CommitLogWindowComponent) component).getComponent() : component;
+    }
+
     private int getComponentAt(int i, boolean select) {
 
         if (select) {
@@ -171,20 +203,204 @@ class CommitLogWindow {
         return -1;
     }
 
-    public Editor addCommitLog(String title, Editor commitLog) {
+    public void addCommitLog(String title, CharSequence text) {
+        openCommitLog(this.archive.append(title, text.toString()), true);
+    }
+
+    /**
+     * Opens tabs for the most recent archived logs, without reading any of them until they are selected.
+     */
+    void restoreCommitLogs() {
 
-        boolean notExist = !this.commitLogs.contains(commitLog);
+        List<CommitLogArchive.ArchivedCommitLog> archivedCommitLogs = this.archive.getCommitLogs();
+        int restored = Math.min(archivedCommitLogs.size(), getMaxOpenCommitLogs());
 
-        LOG.assertTrue(notExist);
+        for (int i = archivedCommitLogs.size() - restored; i < archivedCommitLogs.size(); i++) {
+            openCommitLog(archivedCommitLogs.get(i), i == archivedCommitLogs.size() - 1);
+        }
+    }
+
+    private void openCommitLog(CommitLogArchive.ArchivedCommitLog archivedCommitLog, boolean select) {
+
+        CommitLogTab commitLog = new CommitLogTab(archivedCommitLog);
 
         DefaultActionGroup actions = new DefaultActionGroup();
-        actions.add(new CopyContentAction(commitLog));
+        actions.add(new CopyContentAction());
+        actions.add(new ReopenCommitLogGroup());
+        actions.add(new SearchCommitLogsAction());
+
+        this.commitLogs.put(commitLog.holder, commitLog);
+        addTab(archivedCommitLog.getTitle(), commitLog.holder, select, false, false, true, actions, "commitlog.commitlog");
+
+        // a tab of the same title is reused rather than replaced
+        if (getContent(commitLog) == null) {
+            this.commitLogs.remove(commitLog.holder);
+            return;
+        }
+
+        if (select) {
+            showCommitLog(commitLog);
+        }
+
+        evictCommitLogs();
+    }
+
+    /**
+     * Closes the oldest tabs beyond the project's limit.  Their logs stay in the archive, and can be reopened from
+     * there.
+     */
+    void evictCommitLogs() {
+
+        while (this.commitLogs.size() > getMaxOpenCommitLogs()) {
+
+            CommitLogTab oldest = this.commitLogs.values().iterator().next();
+            Content content = getContent(oldest);
+
+            if (content != null) {
+                getContentManager().removeContent(content, true);
+            }
+
+            this.commitLogs.remove(oldest.holder);
+        }
+    }
+
+    private int getMaxOpenCommitLogs() {
+
+        CommitLogProjectComponent projectComponent = CommitLogProjectComponent.PROJECT_COMPONENTS.get(this.project);
+
+        return Math.max(1, projectComponent != null ? projectComponent.getMaxOpenCommitLogs()
+                                                    : CommitLogProjectComponent.DEFAULT_MAX_OPEN_COMMIT_LOGS);
+    }
 
-        addTab(title, commitLog.getComponent(), true, false, false, true, actions, "commitlog.commitlog");
+    private boolean isOpen(CommitLogArchive.ArchivedCommitLog archivedCommitLog) {
 
-        this.commitLogs.add(commitLog);
+        for (CommitLogTab commitLog : this.commitLogs.values()) {
 
-        return commitLog;
+            if (commitLog.archivedCommitLog == archivedCommitLog) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Selects the log's tab, opening one if it is not open.
+     */
+    private void selectCommitLog(CommitLogArchive.ArchivedCommitLog archivedCommitLog) {
+
+        for (CommitLogTab commitLog : this.commitLogs.values()) {
+
+            if (commitLog.archivedCommitLog == archivedCommitLog) {
+
+                Content content = getContent(commitLog);
+
+                if (content != null) {
+                    getContentManager().setSelectedContent(content);
+                }
+
+                return;
+            }
+        }
+
+        openCommitLog(archivedCommitLog, true);
+    }
+
+    @Nullable
+    private Content getContent(CommitLogTab commitLog) {
+
+        for (Content content : getContentManager().getContents()) {
+
+            if (getTabComponent(content) == commitLog.holder) {
+                return content;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Moves the viewer into the tab's placeholder and swaps the tab's text into its document.  The text is read and
+     * inflated on a pooled thread, as a large commit's log runs to megabytes - the viewer says so until it is loaded,
+     * and is left alone if another tab has been selected by then.
+     */
+    private void showCommitLog(@Nullable final CommitLogTab commitLog) {
+
+        if ((commitLog == null) || (commitLog == this.shownCommitLog)) {
+            return;
+        }
+
+        final Editor viewer = getViewer();
+
+        setViewerText(viewer, "Loading " + commitLog.archivedCommitLog.getTitle() + "...");
+
+        ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+
+            public void run() {
+
+                String loadedText;
+
+                try {
+                    loadedText = CommitLogWindow.this.archive.read(commitLog.archivedCommitLog);
+                } catch (IOException e) {
+                    loadedText = "Could not read commit log : " + e.getMessage();
+                }
+
+                final String text = loadedText;
+
+                ApplicationManager.getApplication().invokeLater(new Runnable() {
+
+                    public void run() {
+
+                        if ((CommitLogWindow.this.shownCommitLog == commitLog) && (CommitLogWindow.this.viewer == viewer)) {
+                            setViewerText(viewer, text);
+                        }
+                    }
+                });
+            }
+        });
+
+        if (this.shownCommitLog != null) {
+            this.shownCommitLog.holder.removeAll();
+        }
+
+        commitLog.holder.add(viewer.getComponent(), BorderLayout.CENTER);
+        commitLog.holder.revalidate();
+        commitLog.holder.repaint();
+        this.shownCommitLog = commitLog;
+    }
+
+    private static void setViewerText(final Editor viewer, final String text) {
+
+        ApplicationManager.getApplication().runWriteAction(new Runnable() {
+
+            public void run() {
+                viewer.getDocument().setText(text);
+            }
+        });
+    }
+
+    private Editor getViewer() {
+
+        if (this.viewer == null) {
+            this.viewer = createViewer(this.project, "");
+        }
+
+        return this.viewer;
+    }
+
+    private static Editor createViewer(Project project, CharSequence text) {
+
+        EditorFactory editorFactory = EditorFactory.getInstance();
+        Document document = editorFactory.createDocument(text);
+        Editor viewer = editorFactory.createViewer(document, project);
+        EditorSettings editorsettings = viewer.getSettings();
+        editorsettings.setFoldingOutlineShown(false);
+        editorsettings.setLineMarkerAreaShown(false);
+        editorsettings.setLineNumbersShown(false);
+        editorsettings.setRightMarginShown(false);
+
+        return viewer;
     }
 
     public void ensureVisible(Project project) {
@@ -212,28 +428,145 @@ class CommitLogWindow {
         return this.contentManager;
     }
 
-    private static class CopyContentAction extends AnAction {
+    /**
+     * Lists the archived commit logs that are not open, most recent first, and reopens the one chosen in a new tab.
+     */
+    private class ReopenCommitLogGroup extends ActionGroup {
+
+        private static final int MAX_LISTED_COMMIT_LOGS = 30;
+
+        ReopenCommitLogGroup() {
+            super("Reopen", "Reopen an archived commit log", IconLoader.getIcon("/actions/back.png"));
+            setPopup(true);
+        }
+
+        public AnAction[] getChildren(@Nullable AnActionEvent e) {
+
+            List<CommitLogArchive.ArchivedCommitLog> archivedCommitLogs = CommitLogWindow.this.archive.getCommitLogs();
+            List<AnAction> result = new ArrayList<>();
+
+            for (int i = archivedCommitLogs.size() - 1; (i >= 0) && (result.size() < MAX_LISTED_COMMIT_LOGS); i--) {
+
+                final CommitLogArchive.ArchivedCommitLog archivedCommitLog = archivedCommitLogs.get(i);
+
+                if (isOpen(archivedCommitLog)) {
+                    continue;
+                }
+
+                result.add(new AnAction(archivedCommitLog.getTitle()) {
+
+                    public void actionPerformed(AnActionEvent e) {
+                        openCommitLog(archivedCommitLog, true);
+                    }
+                });
+            }
+
+            return result.toArray(new AnAction[result.size()]);
+        }
+    }
 
-        private final Editor _commitLog;
+    /**
+     * A search field over the archived commit logs.  Enter lists the logs holding every word typed - file names, paths,
+     * roots, revisions or words of the message - most recent first, and opens the one chosen.
+     */
+    private class SearchCommitLogsAction extends AnAction implements CustomComponentAction {
+
+        private static final int MAX_LISTED_COMMIT_LOGS = 30;
+
+        SearchCommitLogsAction() {
+            super("Search", "Search the archived commit logs", null);
+        }
 
         public void actionPerformed(AnActionEvent e) {
+        }
+
+        public JComponent createCustomComponent(Presentation presentation) {
+
+            final JTextField searchField = new JTextField(12);
+
+            searchField.setToolTipText(presentation.getDescription());
+            searchField.addActionListener(new ActionListener() {
+
+                public void actionPerformed(ActionEvent e) {
+                    showSearchResults(searchField);
+                }
+            });
+
+            return searchField;
+        }
+
+        private void showSearchResults(JTextField searchField) {
+
+            List<CommitLogArchive.ArchivedCommitLog> found = CommitLogWindow.this.archive.search(searchField.getText());
+            JPopupMenu results = new JPopupMenu();
+
+            if (found.isEmpty()) {
+
+                JMenuItem none = new JMenuItem("No commit logs found");
+                none.setEnabled(false);
+                results.add(none);
+            }
+
+            for (int i = 0; (i < found.size()) && (i < MAX_LISTED_COMMIT_LOGS); i++) {
+
+                final CommitLogArchive.ArchivedCommitLog archivedCommitLog = found.get(i);
+                JMenuItem item = new JMenuItem(archivedCommitLog.getTitle());
 
-            boolean hasSelection = this._commitLog.getSelectionModel().hasSelection();
+                item.addActionListener(new ActionListener() {
+
+                    public void actionPerformed(ActionEvent e) {
+                        selectCommitLog(archivedCommitLog);
+                    }
+                });
+                results.add(item);
+            }
+
+            results.show(searchField, 0, searchField.getHeight());
+        }
+    }
+
+    /**
+     * Copies the selection of the viewer, or all of the commit log it is showing.
+     */
+    private class CopyContentAction extends AnAction {
+
+        public void actionPerformed(AnActionEvent e) {
+
+            Editor commitLog = CommitLogWindow.this.viewer;
+
+            if (commitLog == null) {
+                return;
+            }
+
+            boolean hasSelection = commitLog.getSelectionModel().hasSelection();
 
             if (!hasSelection) {
-                this._commitLog.getSelectionModel().setSelection(0, this._commitLog.getDocument().getCharsSequence().length() - 1);
+                commitLog.getSelectionModel().setSelection(0, commitLog.getDocument().getCharsSequence().length() - 1);
             }
 
-            this._commitLog.getSelectionModel().copySelectionToClipboard();
+            commitLog.getSelectionModel().copySelectionToClipboard();
 
             if (!hasSelection) {
-                this._commitLog.getSelectionModel().removeSelection();
+                commitLog.getSelectionModel().removeSelection();
             }
         }
 
-        CopyContentAction(Editor commitLog) {
+        CopyContentAction() {
             super("Copy", "Copy content to clipboard", IconLoader.getIcon("/actions/copy.png"));
-            this._commitLog = commitLog;
+        }
+    }
+
+    /**
+     * What a commit log tab holds - where its text is archived, and the placeholder the viewer is put in while the
+     * tab is selected.
+     */
+    private static final class CommitLogTab {
+
+        private final CommitLogArchive.ArchivedCommitLog archivedCommitLog;
+        private final JPanel holder = new JPanel(new BorderLayout());
+
+        private CommitLogTab(CommitLogArchive.ArchivedCommitLog archivedCommitLog) {
+            this.archivedCommitLog = archivedCommitLog;
         }
     }
 }
@@ -0,0 +1,119 @@
+package com.anecdote.ideaplugins.commitlog;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.Set;
+
+final class CompiledCommitLogTemplate {
+
+    private final String templateText;
+    private final CommitLogTemplateNodeTable nodes;
+    private final CommitLogPlaceholder[] placeholders;
+    private final Set<CommitLogPlaceholder> usedPlaceholders = EnumSet.noneOf(CommitLogPlaceholder.class);
+
+    private CompiledCommitLogTemplate(String templateText, CommitLogTemplateNodeTable nodes, CommitLogPlaceholder[] placeholders) {
+
+        this.templateText = templateText;
+        this.nodes = nodes;
+        this.placeholders = placeholders;
+
+        for (CommitLogPlaceholder placeholder : placeholders) {
+
+            if (placeholder != null) {
+                this.usedPlaceholders.add(placeholder);
+            }
+        }
+    }
+
+    static CompiledCommitLogTemplate compile(String templateText) throws CommitLogTemplateParser.TextTemplateParserException {
+
+        return compile(new CommitLogTemplateParser().parseTextTemplate(templateText));
+    }
+
+    /**
+     * Compiles a template already parsed, such as one the configuration page reparsed as it was edited.
+     */
+    static CompiledCommitLogTemplate compile(CommitLogTemplateNodeTable nodes) throws CommitLogTemplateParser.TextTemplateParserException {
+        return new CompiledCommitLogTemplate(nodes.getTemplateText(), nodes, resolvePlaceholders(nodes));
+    }
+
+    /**
+     * Resolves every placeholder node to its {@link CommitLogPlaceholder}, rejecting unknown placeholders and those
+     * used outside the blocks they are valid in.  Closing block placeholders are left unresolved.
+     */
+    private static CommitLogPlaceholder[] resolvePlaceholders(CommitLogTemplateNodeTable nodes) throws CommitLogTemplateParser.TextTemplateParserException {
+
+        CommitLogPlaceholder[] result = new CommitLogPlaceholder[nodes.size()];
+        Deque<Integer> openBlocks = new ArrayDeque<>();
+
+        for (int i = 0; i < nodes.size(); i++) {
+
+            CommitLogTemplateParser.TextTemplateNodeType nodeType = nodes.getType(i);
+
+            if (nodeType == CommitLogTemplateParser.TextTemplateNodeType.TEXT_NODE) {
+                continue;
+            }
+
+            boolean block = nodeType == CommitLogTemplateParser.TextTemplateNodeType.BLOCK_PLACEHOLDER_NODE;
+
+            if (block && (!openBlocks.isEmpty()) && (nodes.getMatchingNode(openBlocks.peek()) == i)) {
+                openBlocks.pop();
+                continue;
+            }
+
+            CommitLogPlaceholder placeholder = CommitLogPlaceholder.forName(nodes.getText(i), block);
+            String placeholderText = block ? "[" + nodes.getText(i) + "]" : "$" + nodes.getText(i) + "$";
+
+            if (placeholder == null) {
+                CommitLogTemplateParser.throwParserException("Unknown placeholder " + placeholderText, nodes.getLocation(i));
+            }
+
+            CommitLogPlaceholder enclosingBlock = openBlocks.isEmpty() ? null : result[openBlocks.peek()];
+
+            if (!placeholder.isAllowedIn(enclosingBlock)) {
+
+                CommitLogTemplateParser.throwParserException(placeholderText + " may not be used "
+                        + (enclosingBlock != null ? "within " + enclosingBlock.toTemplateText() : "outside a block"), nodes.getLocation(i));
+            }
+
+            result[i] = placeholder;
+
+            if (block) {
+                openBlocks.push(i);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return every placeholder the template references, so that entry fields nothing renders need not be looked up
+     */
+    Set<CommitLogPlaceholder> getUsedPlaceholders() {
+        return Collections.unmodifiableSet(this.usedPlaceholders);
+    }
+
+    boolean usesPlaceholder(CommitLogPlaceholder placeholder) {
+        return this.usedPlaceholders.contains(placeholder);
+    }
+
+    String getTemplateText() {
+        return this.templateText;
+    }
+
+    CommitLogTemplateNodeTable getNodes() {
+        return this.nodes;
+    }
+
+    /**
+     * @return the placeholder the node was resolved to, or null for text nodes and closing block placeholders
+     */
+    @Nullable
+    CommitLogPlaceholder getPlaceholder(int node) {
+        return this.placeholders[node];
+    }
+}
@@ -6,21 +6,20 @@ import com.intellij.openapi.actionSystem.AnActionEvent;
 import com.intellij.openapi.actionSystem.DataKey;
 import com.intellij.openapi.actionSystem.DataKeys;
 import com.intellij.openapi.options.ShowSettingsUtil;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.ui.Messages;
 import com.intellij.openapi.util.IconLoader;
 import com.intellij.openapi.vcs.CheckinProjectPanel;
-import com.intellij.openapi.vcs.FilePath;
-import com.intellij.openapi.vcs.ProjectLevelVcsManager;
-import com.intellij.openapi.vcs.changes.Change;
-import com.intellij.openapi.vcs.changes.ChangesUtil;
 import com.intellij.openapi.vcs.changes.LocalChangeList;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
 import java.io.File;
 import java.util.Collection;
 import java.util.Date;
-import java.util.HashSet;
 
 public class GenerateCommentAction extends AnAction {
 
@@ -72,8 +71,8 @@ public class GenerateCommentAction extends AnAction {
 
     public void actionPerformed(AnActionEvent e) {
 
-        CheckinProjectPanel panel = (CheckinProjectPanel) e.getData(CheckinProjectPanel.PANEL_KEY);
-        JTextArea commentEditor = e.getData(CHANGES_BAR_COMMENT_EDITOR_DATA_KEY);
+        final CheckinProjectPanel panel = (CheckinProjectPanel) e.getData(CheckinProjectPanel.PANEL_KEY);
+        final JTextArea commentEditor = e.getData(CHANGES_BAR_COMMENT_EDITOR_DATA_KEY);
 
         if ((panel != null) || (commentEditor != null)) {
 
@@ -87,9 +86,9 @@ public class GenerateCommentAction extends AnAction {
 
                 if (confirmation == 0) {
 
-                    CommitLogProjectComponent projectComponent = project.getComponent(CommitLogProjectComponent.class);
-                    Collection<File> files;
-                    String commitMessage;
+                    final CommitLogProjectComponent projectComponent = project.getComponent(CommitLogProjectComponent.class);
+                    final Collection<File> files;
+                    final String commitMessage;
 
                     if (panel != null) {
 
@@ -105,28 +104,63 @@ public class GenerateCommentAction extends AnAction {
                             return;
                         }
 
-                        ProjectLevelVcsManager vcsManager = ProjectLevelVcsManager.getInstance(project);
-                        files = new HashSet();
-
-                        for (Change change : changeList.getChanges()) {
-                            FilePath filepath = ChangesUtil.getFilePath(change);
-                            files.add(filepath.getIOFile());
-                        }
+                        files = CommitLogCommentPregenerator.getFiles(changeList.getChanges());
                     }
 
-                    CommitLogBuilder commitLogBuilder = CommitLogBuilder.createCommitLogBuilder(projectComponent.getTextualCommitCommentTemplate(), commitMessage, project, files);
-
                     try {
 
-                        String commitLog = commitLogBuilder.buildCommitLog(new Date());
+                        // resolves through the shared template cache, so a broken template is reported before any
+                        // entries are collected and an unchanged one is never parsed twice
+                        final CompiledCommitLogTemplate commentTemplate = projectComponent.getCompiledCommitCommentTemplate();
+                        String commitLog = projectComponent.getCommentPregenerator().getComment(commentTemplate.getTemplateText(), files, commitMessage);
 
-                        if (panel != null) {
-                            panel.setCommitMessage(commitLog);
-                        } else {
-                            commentEditor.setText(commitLog);
-                            commentEditor.requestFocusInWindow();
+                        if (commitLog != null) {
+                            setComment(panel, commentEditor, commitLog);
+                            return;
                         }
 
+                        final CommitLogBuilder pregeneratedBuilder = projectComponent.getCommentPregenerator().getCommitLogBuilder(
+                                commentTemplate.getTemplateText(), files);
+
+                        // collecting the entries of a large change list, or rendering them again for a new commit
+                        // message, takes a while, so it is done off the EDT and nothing is written unless it completes
+                        new Task.Modal(project, "Generating Comment", true) {
+
+                            private String comment;
+
+                            public void run(@NotNull ProgressIndicator indicator) {
+
+                                CommitLogBuilder commitLogBuilder = pregeneratedBuilder;
+
+                                if (commitLogBuilder != null) {
+                                    commitLogBuilder.setCommitMessage(commitMessage);
+                                } else {
+                                    indicator.setText("Collecting changed files");
+                                    commitLogBuilder = CommitLogBuilder.createCommitLogBuilder(
+                                            commentTemplate.getTemplateText(), commitMessage, getProject(), files, false, indicator);
+                                }
+
+                                indicator.checkCanceled();
+                                indicator.setText("Rendering comment");
+                                indicator.setIndeterminate(true);
+
+                                try {
+                                    this.comment = commitLogBuilder.buildCommitLog(new Date());
+                                } catch (CommitLogTemplateParser.TextTemplateParserException e) {
+                                    // the template compiled above, so cannot fail here
+                                    throw new IllegalStateException(e);
+                                }
+                            }
+
+                            public void onSuccess() {
+                                setComment(panel, commentEditor, this.comment);
+                            }
+
+                            public void onCancel() {
+                                CommitLogProjectComponent.log("GenerateCommentAction : comment generation cancelled");
+                            }
+                        }.queue();
+
                     } catch (CommitLogTemplateParser.TextTemplateParserException e1) {
 
                         int result = Messages.showDialog(project,
@@ -144,4 +178,14 @@ public class GenerateCommentAction extends AnAction {
             }
         }
     }
+
+    private static void setComment(@Nullable CheckinProjectPanel panel, @Nullable JTextArea commentEditor, String comment) {
+
+        if (panel != null) {
+            panel.setCommitMessage(comment);
+        } else if (commentEditor != null) {
+            commentEditor.setText(comment);
+            commentEditor.requestFocusInWindow();
+        }
+    }
 }